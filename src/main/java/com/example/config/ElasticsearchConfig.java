@@ -1,15 +1,24 @@
 package com.example.config;
 
 
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -26,6 +35,43 @@ public class ElasticsearchConfig {
     private String userName;
     @Value("${es.password:elastic}")
     private String password;
+    @Value("${es.max-conn-per-route:50}")
+    private int maxConnPerRoute;
+    @Value("${es.max-conn-total:200}")
+    private int maxConnTotal;
+    @Value("${es.io-thread-count:0}")
+    private int ioThreadCount;
+    @Value("${es.keep-alive-ms:60000}")
+    private long keepAliveMs;
+    @Value("${es.socket-timeout-ms:30000}")
+    private int socketTimeoutMs;
+    @Value("${es.compression:false}")
+    private boolean compression;
+    @Value("${es.sniff.enabled:false}")
+    private boolean sniffEnabled;
+    @Value("${es.sniff.interval-ms:300000}")
+    private int sniffIntervalMs;
+    @Value("${es.sniff.on-failure:true}")
+    private boolean sniffOnFailure;
+    @Value("${es.sniff.after-failure-delay-ms:60000}")
+    private int sniffAfterFailureDelayMs;
+    @Value("${es.routing.latency-aware:false}")
+    private boolean latencyAware;
+    @Value("${es.routing.decay-ms:10000}")
+    private long latencyDecayMs;
+    @Value("${es.recorder.enabled:false}")
+    private boolean recorderEnabled;
+    @Value("${es.recorder.file:es-traffic.rec.gz}")
+    private String recorderFile;
+    @Value("${es.recorder.mask-fields:_id,password,phone,mobile,email,id_card}")
+    private String[] recorderMaskFields;
+    @Value("${es.recorder.queue-size:10000}")
+    private int recorderQueueSize;
+
+    /**
+     * 节点请求失败时触发sniff，在sniffer创建后绑定
+     */
+    private final SniffOnFailureListener sniffOnFailureListener = new SniffOnFailureListener();
 
 
     private RestHighLevelClient restClientByUrl(String esRestAddress,String userName,String password){
@@ -49,6 +95,9 @@ public class ElasticsearchConfig {
          * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/_basic_authentication.html
          * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/_encrypted_communication.html
          *
+         * 节点发现
+         * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/sniffer.html
+         *
          */
         // 基础的认证配置
         final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
@@ -56,15 +105,39 @@ public class ElasticsearchConfig {
 
 
 
+        LatencyAwareNodeSelector nodeSelector = nodeSelector();
+        TrafficRecorder trafficRecorder = trafficRecorder();
         RestClientBuilder builder = RestClient.builder(httpHosts.toArray(new HttpHost[]{}));
         builder.setHttpClientConfigCallback(httpClientBuilder -> {
-            return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-
+            httpClientBuilder.addInterceptorLast((HttpRequestInterceptor) nodeSelector)     //记录各节点的响应耗时
+                    .addInterceptorLast((HttpResponseInterceptor) nodeSelector);
+            if (trafficRecorder.isEnabled()) {
+                httpClientBuilder.addInterceptorLast((HttpRequestInterceptor) trafficRecorder)   //录制请求，用于回放压测
+                        .addInterceptorLast((HttpResponseInterceptor) trafficRecorder);
+            }
+            httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider)
+                    .setMaxConnPerRoute(maxConnPerRoute)   //每个节点的最大连接数
+                    .setMaxConnTotal(maxConnTotal)         //总的最大连接数
+                    .setKeepAliveStrategy((response, context) -> {
+                        //优先使用服务端返回的Keep-Alive，但不超过keepAliveMs，避免使用已被防火墙等中间设备断开的连接
+                        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return duration > 0 ? Math.min(duration, keepAliveMs) : keepAliveMs;
+                    });
+            if (ioThreadCount > 0) {
+                //I/O线程数，默认为CPU核数
+                httpClientBuilder.setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(ioThreadCount).build());
+            }
+            return httpClientBuilder;
         });
         //设置超时时间
         builder.setRequestConfigCallback(requestConfigCallback -> {
-            return requestConfigCallback.setConnectTimeout(50*1000).setConnectionRequestTimeout(50*1000);
+            return requestConfigCallback.setConnectTimeout(50*1000).setConnectionRequestTimeout(50*1000)
+                    .setSocketTimeout(socketTimeoutMs);
         });
+        builder.setNodeSelector(nodeSelector);
+        if (sniffEnabled && sniffOnFailure) {
+            builder.setFailureListener(sniffOnFailureListener);
+        }
         return new RestHighLevelClient(builder);
     }
 
@@ -74,6 +147,44 @@ public class ElasticsearchConfig {
         return restClientByUrl(esRestAddress,userName,password);
     }
 
+    // 按节点响应耗时选择节点，hedge请求也通过它指定节点
+    @Bean
+    public LatencyAwareNodeSelector nodeSelector(){
+        return new LatencyAwareNodeSelector(latencyAware, latencyDecayMs);
+    }
+
+    // 开启es.recorder.enabled时录制所有请求，用TrafficReplay回放
+    @Bean(destroyMethod = "close")
+    public TrafficRecorder trafficRecorder(){
+        return new TrafficRecorder(recorderEnabled, recorderFile, recorderMaskFields, recorderQueueSize);
+    }
+
+    // 定时从集群获取节点列表，新增的数据节点会自动加入请求轮询
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "es.sniff.enabled", havingValue = "true")
+    public Sniffer sniffer(RestHighLevelClient restClient){
+        Sniffer sniffer = Sniffer.builder(restClient.getLowLevelClient())
+                .setSniffIntervalMillis(sniffIntervalMs)
+                .setSniffAfterFailureDelayMillis(sniffAfterFailureDelayMs)
+                .build();
+        if (sniffOnFailure) {
+            sniffOnFailureListener.setSniffer(sniffer);
+        }
+        return sniffer;
+    }
+
+    // 所有请求共用的RequestOptions，开启es.compression时响应使用gzip压缩传输
+    // 未开启时也使用可解压的consumer，单个请求(如SearchShape.gzip)可以自行要求gzip响应
+    @Bean
+    public RequestOptions requestOptions(){
+        RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder();
+        builder.setHttpAsyncResponseConsumerFactory(new GzipResponseConsumerFactory());   //7.5中返回void，不能链式调用
+        if (compression) {
+            builder.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        }
+        return builder.build();
+    }
+
 
 
 }
@@ -0,0 +1,41 @@
+package com.example.config;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+
+/**
+ * 7.5的RestClient不会解压gzip响应，这里在响应缓冲完成后替换为解压后的entity
+ * 解析时按需解压，不会额外缓冲一份完整的解压数据
+ */
+public class GzipResponseConsumerFactory implements HttpAsyncResponseConsumerFactory {
+
+    /**
+     * 与默认的HeapBufferedResponseConsumerFactory保持一致，单个响应最大100MB
+     */
+    private static final int BUFFER_LIMIT = 100 * 1024 * 1024;
+
+    @Override
+    public HttpAsyncResponseConsumer<HttpResponse> createHttpAsyncResponseConsumer() {
+        return new HeapBufferedAsyncResponseConsumer(BUFFER_LIMIT) {
+            @Override
+            protected HttpResponse buildResult(HttpContext context) throws Exception {
+                HttpResponse response = super.buildResult(context);
+                HttpEntity entity = response.getEntity();
+                Header encoding = entity == null ? null : entity.getContentEncoding();
+                if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+                    response.setEntity(new GzipDecompressingEntity(entity));
+                    response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+                    response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+                }
+                return response;
+            }
+        };
+    }
+}
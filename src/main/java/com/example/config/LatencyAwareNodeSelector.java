@@ -0,0 +1,161 @@
+package com.example.config;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-low-usage-requests.html
+ * 按各节点最近的响应耗时(EWMA，收到响应头为止)选择节点：随机取两个节点，选耗时低的一个(power of two choices)
+ * 超过decayMs没有新样本的节点视为未知，会重新被选中以探测其当前耗时
+ * 未开启latencyAware时保持客户端原有的轮询，只有hedge的请求通过pin/exclude指定节点
+ * 注意：只保留一个节点时，连接失败不会再在本次请求内重试其他节点，失败的节点会被客户端暂时标记为不可用
+ */
+public class LatencyAwareNodeSelector implements NodeSelector, HttpRequestInterceptor, HttpResponseInterceptor {
+
+    private static final String START = LatencyAwareNodeSelector.class.getName() + ".start";
+
+    private static final double ALPHA = 0.3;
+
+    private final boolean latencyAware;
+    private final long decayMs;
+
+    private final ConcurrentMap<HttpHost, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * RestClient在发送请求的线程中同步调用select，通过ThreadLocal把本次请求的选择结果带出来
+     */
+    private final ThreadLocal<Selection> selection = new ThreadLocal<>();
+
+    public LatencyAwareNodeSelector(boolean latencyAware, long decayMs) {
+        this.latencyAware = latencyAware;
+        this.decayMs = decayMs;
+    }
+
+    /**
+     * 发送一次请求并固定到单个节点
+     * @param exclude  不使用的节点(如首次请求的节点)，为null时不排除
+     * @param send     发送请求，必须在当前线程调用RestClient
+     * @return         本次请求使用的节点，未经过select时为null
+     */
+    public HttpHost pin(HttpHost exclude, Runnable send){
+        Selection current = new Selection(exclude);
+        selection.set(current);
+        try {
+            send.run();
+        } finally {
+            selection.remove();
+        }
+        return current.selected;
+    }
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        Selection current = selection.get();
+        if (!latencyAware && current == null) {
+            return;
+        }
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : nodes) {
+            if (current == null || current.exclude == null || !current.exclude.equals(node.getHost())) {
+                candidates.add(node);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;   //只剩被排除的节点时不做选择
+        }
+        Node chosen = choose(candidates);
+        for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() != chosen) {
+                iterator.remove();
+            }
+        }
+        if (current != null) {
+            current.selected = chosen.getHost();
+        }
+    }
+
+    private Node choose(List<Node> candidates){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        Node a = candidates.get(first);
+        Node b = candidates.get(second);
+        if (!latencyAware) {
+            return a;
+        }
+        return score(a.getHost()) <= score(b.getHost()) ? a : b;
+    }
+
+    /**
+     * 节点当前的耗时估计(纳秒)，没有样本或样本已过期时为0
+     */
+    public double score(HttpHost host){
+        Stats s = stats.get(host);
+        if (s == null) {
+            return 0;
+        }
+        synchronized (s) {
+            return System.currentTimeMillis() - s.updatedAt > decayMs ? 0 : s.ewma;
+        }
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        context.setAttribute(START, System.nanoTime());
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        Object start = context.getAttribute(START);
+        HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+        if (start == null || host == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - (Long) start;
+        Stats s = stats.computeIfAbsent(host, h -> new Stats());
+        synchronized (s) {
+            long now = System.currentTimeMillis();
+            s.ewma = now - s.updatedAt > decayMs ? elapsed : s.ewma + ALPHA * (elapsed - s.ewma);
+            s.updatedAt = now;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return latencyAware ? "LATENCY_AWARE" : "ROUND_ROBIN";
+    }
+
+    private static class Stats {
+        private double ewma;
+        private long updatedAt;
+    }
+
+    private static class Selection {
+        private final HttpHost exclude;
+        private HttpHost selected;
+
+        Selection(HttpHost exclude) {
+            this.exclude = exclude;
+        }
+    }
+}
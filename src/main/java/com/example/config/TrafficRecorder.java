@@ -0,0 +1,412 @@
+package com.example.config;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 录制发往ES的HTTP请求，用于在桩服务或真实集群上按原始节奏回放(见test下的TrafficReplay)
+ * 作为HttpClient的请求/响应拦截器，记录操作名(ESMetrics在录制时通过X-Opaque-Id传递方法名)、HTTP方法、路径和参数、请求体、耗时和状态码
+ * 不记录任何请求头(如认证信息)；es.recorder.mask-fields中字段的值替换为等长的x(数字替换为0)，包括查询中该字段下的
+ * 查询值(如{"match":{"name":{"query":..}}})，含_id时同时替换路径中的文档id和ids查询；
+ * 脱敏后的请求体重新序列化，大小与原请求体不完全相同
+ * 文件为gzip压缩的二进制格式：
+ *   文件头  UTF "ESREC1"，long 录制开始时间(epoch毫秒)
+ *   每条    long 距开始的微秒数，int 耗时微秒，short 状态码，UTF 操作名，UTF HTTP方法，UTF 路径和参数，int 请求体长度，请求体
+ * 写文件在单独的线程中进行，队列满时丢弃，不影响请求；没有收到响应的请求(如连接失败)不记录
+ */
+public class TrafficRecorder implements HttpRequestInterceptor, HttpResponseInterceptor, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficRecorder.class);
+
+    /**
+     * 操作名请求头，ES同时会把它记录到任务和慢日志中
+     */
+    public static final String OPERATION_HEADER = "X-Opaque-Id";
+
+    private static final String MAGIC = "ESREC1";
+    private static final String PENDING = TrafficRecorder.class.getName() + ".pending";
+    private static final int MAX_URI_LENGTH = 16 * 1024;
+
+    /**
+     * 路径中其后为文档id的部分，如/xc_course/_doc/1
+     */
+    private static final Set<String> ID_ENDPOINTS = new HashSet<>(Arrays.asList(
+            "_doc", "_create", "_update", "_source", "_explain", "_termvectors"));
+
+    /**
+     * 查询、排序中字段下的参数，脱敏时保留，使回放的请求仍然合法；其余的值(如query、value、gte)都替换
+     */
+    private static final Set<String> PARAM_KEYS = new HashSet<>(Arrays.asList(
+            "operator", "analyzer", "fuzziness", "prefix_length", "max_expansions", "minimum_should_match",
+            "zero_terms_query", "slop", "boost", "rewrite", "relation", "format", "time_zone", "type",
+            "order", "mode", "missing", "unmapped_type", "_name"));
+
+    private final boolean enabled;
+    private final Set<String> maskFields;
+    private final BlockingQueue<Record> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+
+    private DataOutputStream out;
+    private Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param enabled     是否录制
+     * @param file        录制文件
+     * @param maskFields  需要脱敏的字段名
+     * @param queueSize   等待写入的最大条数
+     */
+    public TrafficRecorder(boolean enabled, String file, String[] maskFields, int queueSize) {
+        this.enabled = enabled;
+        this.maskFields = new HashSet<>(Arrays.asList(maskFields));
+        this.maskFields.remove("");
+        this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+        if (!enabled) {
+            return;
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(Paths.get(file)))));
+            out.writeUTF(MAGIC);
+            out.writeLong(System.currentTimeMillis());
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to open recording " + file, e);
+        }
+        writer = new Thread(this::write, "es-traffic-recorder");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("recording es traffic to {}", file);
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 队列满而丢弃的条数
+     */
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws IOException {
+        if (!enabled || closed) {
+            return;
+        }
+        byte[] body = new byte[0];
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.isRepeatable()) {
+                body = EntityUtils.toByteArray(entity);
+            }
+        }
+        Header operation = request.getFirstHeader(OPERATION_HEADER);
+        String uri = request.getRequestLine().getUri();
+        if (uri.length() > MAX_URI_LENGTH) {
+            dropped.incrementAndGet();   //writeUTF的长度上限
+            return;
+        }
+        context.setAttribute(PENDING, new Record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), 0, (short) 0,
+                operation != null ? operation.getValue() : request.getRequestLine().getMethod() + " " + endpoint(uri),
+                request.getRequestLine().getMethod(), uri, body));
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        Object pending = context.removeAttribute(PENDING);
+        if (!(pending instanceof Record)) {
+            return;
+        }
+        Record record = (Record) pending;
+        long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos) - record.offsetMicros;
+        Record completed = new Record(record.offsetMicros, (int) Math.min(latency, Integer.MAX_VALUE),
+                (short) response.getStatusLine().getStatusCode(), record.operation, record.method, record.uri, record.body);
+        if (!queue.offer(completed)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!enabled || closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while flushing recording, {} queued es requests may be lost", queue.size());
+        }
+    }
+
+    private void write(){
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    record.mask(maskFields).writeTo(out);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("es traffic recorder stopped", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("failed to close recording", e);
+            }
+            if (dropped.get() > 0) {
+                logger.warn("{} es requests were not recorded, increase es.recorder.queue-size", dropped.get());
+            }
+        }
+    }
+
+    /**
+     * 路径中以_开头的部分作为没有操作名时的名称，如_search、_bulk、_doc
+     */
+    private static String endpoint(String uri){
+        int query = uri.indexOf('?');
+        String path = query >= 0 ? uri.substring(0, query) : uri;
+        for (String part : path.split("/")) {
+            if (part.startsWith("_")) {
+                return part;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * 读取录制文件
+     * @param file   录制文件
+     * @return       按发送时间排序的请求
+     * @throws IOException
+     */
+    public static List<Record> read(Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (!MAGIC.equals(in.readUTF())) {
+                throw new IOException(file + " is not an es traffic recording");
+            }
+            in.readLong();
+            while (true) {
+                long offsetMicros;
+                try {
+                    offsetMicros = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int latencyMicros = in.readInt();
+                short status = in.readShort();
+                String operation = in.readUTF();
+                String method = in.readUTF();
+                String uri = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                records.add(new Record(offsetMicros, latencyMicros, status, operation, method, uri, body));
+            }
+        }
+        //响应完成的顺序与发送顺序不完全一致
+        records.sort((a, b) -> Long.compare(a.offsetMicros, b.offsetMicros));
+        return records;
+    }
+
+    /**
+     * 一次录制的请求
+     */
+    public static class Record {
+        private final long offsetMicros;
+        private final int latencyMicros;
+        private final short status;
+        private final String operation;
+        private final String method;
+        private final String uri;
+        private final byte[] body;
+
+        Record(long offsetMicros, int latencyMicros, short status, String operation, String method, String uri, byte[] body) {
+            this.offsetMicros = offsetMicros;
+            this.latencyMicros = latencyMicros;
+            this.status = status;
+            this.operation = operation;
+            this.method = method;
+            this.uri = uri;
+            this.body = body;
+        }
+
+        /**
+         * 距录制开始的时间(微秒)
+         */
+        public long getOffsetMicros() {
+            return offsetMicros;
+        }
+
+        /**
+         * 录制时的耗时(微秒)
+         */
+        public int getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        public short getStatus() {
+            return status;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * 路径和参数，如/xc_course/_search?typed_keys=true
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(offsetMicros);
+            out.writeInt(latencyMicros);
+            out.writeShort(status);
+            out.writeUTF(operation);
+            out.writeUTF(method);
+            out.writeUTF(uri);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        /**
+         * 请求体为json或ndjson(_bulk、_msearch)，逐行脱敏；需要脱敏_id时同时替换路径中的文档id
+         */
+        Record mask(Set<String> fields){
+            if (fields.isEmpty()) {
+                return this;
+            }
+            String maskedUri = fields.contains("_id") ? maskId(uri) : uri;
+            if (body.length == 0) {
+                return maskedUri.equals(uri) ? this : new Record(offsetMicros, latencyMicros, status, operation, method, maskedUri, body);
+            }
+            StringBuilder masked = new StringBuilder(body.length);
+            for (String line : new String(body, StandardCharsets.UTF_8).split("\n")) {
+                masked.append(line.trim().startsWith("{") ? maskLine(line, fields) : line).append('\n');
+            }
+            if (body[body.length - 1] != '\n') {
+                masked.setLength(masked.length() - 1);
+            }
+            return new Record(offsetMicros, latencyMicros, status, operation, method, maskedUri,
+                    masked.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String maskId(String uri){
+            int query = uri.indexOf('?');
+            String[] parts = (query >= 0 ? uri.substring(0, query) : uri).split("/", -1);
+            for (int i = 1; i < parts.length; i++) {
+                if (ID_ENDPOINTS.contains(parts[i - 1]) && !parts[i].isEmpty()) {
+                    parts[i] = x(parts[i].length());
+                }
+            }
+            return String.join("/", parts) + (query >= 0 ? uri.substring(query) : "");
+        }
+
+        private static String maskLine(String line, Set<String> fields){
+            try {
+                Map<String, Object> map = XContentHelper.convertToMap(XContentType.JSON.xContent(), line, true);
+                mask(map, fields);
+                XContentBuilder builder = XContentFactory.jsonBuilder().map(map);
+                return BytesReference.bytes(builder).utf8ToString();
+            } catch (Exception e) {
+                return line;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void mask(Object value, Set<String> fields){
+            if (value instanceof Map) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    String key = entry.getKey();
+                    if (fields.contains(key) || ("ids".equals(key) && fields.contains("_id"))) {
+                        entry.setValue(maskValue(entry.getValue()));
+                    } else {
+                        mask(entry.getValue(), fields);
+                    }
+                }
+            } else if (value instanceof List) {
+                ((List<Object>) value).forEach(item -> mask(item, fields));
+            }
+        }
+
+        /**
+         * 需要脱敏字段的值：字符串、数字替换，数组和对象逐个替换，对象中的operator、order等参数保留
+         */
+        @SuppressWarnings("unchecked")
+        private static Object maskValue(Object value){
+            if (value instanceof String) {
+                return x(((String) value).length());
+            }
+            if (value instanceof Number) {
+                return 0;
+            }
+            if (value instanceof List) {
+                ((List<Object>) value).replaceAll(Record::maskValue);
+            } else if (value instanceof Map) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    if (!PARAM_KEYS.contains(entry.getKey())) {
+                        entry.setValue(maskValue(entry.getValue()));
+                    }
+                }
+            }
+            return value;
+        }
+
+        private static String x(int length){
+            char[] chars = new char[length];
+            Arrays.fill(chars, 'x');
+            return new String(chars);
+        }
+    }
+}
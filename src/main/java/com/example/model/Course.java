@@ -0,0 +1,94 @@
+package com.example.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.example.service.HitDecoder;
+
+/**
+ * xc_course索引库的文档
+ */
+public class Course {
+
+    /**
+     * 从_source直接解析，只读取以下字段
+     */
+    public static final HitDecoder<Course> DECODER = HitDecoder.builder(Course::new)
+            .id(Course::setId)
+            .stringField("name", Course::setName)
+            .stringField("description", Course::setDescription)
+            .stringField("pic", Course::setPic)
+            .stringField("studymodel", Course::setStudymodel)
+            .stringField("timestamp", Course::setTimestamp)
+            .doubleField("price", Course::setPrice)
+            .build();
+
+    private String id;
+    private String name;
+    private String description;
+    private String pic;
+    private String studymodel;
+    private String timestamp;   //yyyy-MM-dd HH:mm:ss
+    private double price;
+
+    @JsonIgnore   //id不写入_source
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getPic() {
+        return pic;
+    }
+
+    public void setPic(String pic) {
+        this.pic = pic;
+    }
+
+    public String getStudymodel() {
+        return studymodel;
+    }
+
+    public void setStudymodel(String studymodel) {
+        this.studymodel = studymodel;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(String timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public void setPrice(double price) {
+        this.price = price;
+    }
+
+    @Override
+    public String toString() {
+        return "Course{id='" + id + "', name='" + name + "', price=" + price + ", studymodel='" + studymodel
+                + "', timestamp='" + timestamp + "'}";
+    }
+}
@@ -0,0 +1,404 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 自适应并发限制 + 熔断，读写分别计算并发上限
+ * 并发上限按窗口调整(gradient)：每个窗口(至少es.limiter.window-ms且至少es.limiter.window-min-samples个请求)结束时只调整一次
+ * - 窗口内集群返回过429/503时乘以es.limiter.backoff-ratio
+ * - 否则按操作比较窗口平均耗时与长期平均耗时，gradient = tolerance * 长期平均 / 窗口平均，限制在[0.5, 1]，
+ *   各操作按请求数加权，小于1时上限乘以gradient
+ * - 耗时正常且窗口内并发曾用满时上限加1
+ * 长期平均按操作分别统计，每个窗口向窗口平均移动1/es.limiter.long-term-windows，适应集群整体变慢；
+ * 分操作统计避免exists、get等很快的操作把search、msearch都判定为变慢，单个请求的抖动只影响窗口平均
+ * 熔断器读写共用：最近es.breaker.window次请求中连接失败、5xx和429的比例超过es.breaker.failure-rate时打开，
+ * es.breaker.open-ms后放行一个探测请求，该请求成功则关闭
+ * 指标：es.limiter.limit、es.limiter.in-flight、es.limiter.rejected、es.breaker.state(0关闭,1半开,2打开)
+ */
+@Component
+public class AdaptiveLimiter {
+
+    public enum Kind {
+        READ, WRITE
+    }
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${es.limiter.enabled:false}")
+    private boolean limiterEnabled;
+    @Value("${es.limiter.read.initial:20}")
+    private int readInitial;
+    @Value("${es.limiter.read.max:200}")
+    private int readMax;
+    @Value("${es.limiter.write.initial:10}")
+    private int writeInitial;
+    @Value("${es.limiter.write.max:100}")
+    private int writeMax;
+    @Value("${es.limiter.min:1}")
+    private int minLimit;
+    @Value("${es.limiter.tolerance:2.0}")
+    private double tolerance;
+    @Value("${es.limiter.window-ms:100}")
+    private long windowMs;
+    @Value("${es.limiter.window-min-samples:10}")
+    private int windowMinSamples;
+    @Value("${es.limiter.long-term-windows:60}")
+    private int longTermWindows;
+    @Value("${es.limiter.backoff-ratio:0.9}")
+    private double backoffRatio;
+    @Value("${es.limiter.max-wait-ms:0}")
+    private long maxWaitMs;
+
+    @Value("${es.breaker.enabled:false}")
+    private boolean breakerEnabled;
+    @Value("${es.breaker.window:100}")
+    private int breakerWindow;
+    @Value("${es.breaker.min-calls:20}")
+    private int breakerMinCalls;
+    @Value("${es.breaker.failure-rate:0.5}")
+    private double breakerFailureRate;
+    @Value("${es.breaker.open-ms:5000}")
+    private long breakerOpenMs;
+
+    private final Map<Kind, Budget> budgets = new EnumMap<>(Kind.class);
+
+    private Breaker breaker;
+
+
+    @PostConstruct
+    public void init(){
+        budgets.put(Kind.READ, new Budget(Kind.READ, readInitial, readMax));
+        budgets.put(Kind.WRITE, new Budget(Kind.WRITE, writeInitial, writeMax));
+        breaker = new Breaker();
+        Gauge.builder("es.breaker.state", breaker, Breaker::state).register(registry);
+    }
+
+    /**
+     * 同步调用：并发已满时最多等待es.limiter.max-wait-ms，仍无名额或熔断打开时抛出EsRejectedExecutionException
+     * @param operation  操作名(如方法名)，耗时基线按操作分别计算
+     */
+    public <T> T call(Kind kind, String operation, Callable<T> call) throws Exception{
+        if (!limiterEnabled && !breakerEnabled) {
+            return call.call();
+        }
+        Budget budget = budgets.get(kind);
+        boolean probe = budget.acquire(maxWaitMs);
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            budget.release(operation, start, null, probe);
+            return result;
+        } catch (Exception e) {
+            budget.release(operation, start, e, probe);
+            throw e;
+        }
+    }
+
+    /**
+     * 异步调用：不等待，并发已满或熔断打开时返回失败的future
+     * @param operation  操作名(如方法名)，耗时基线按操作分别计算
+     */
+    public <T> CompletableFuture<T> callAsync(Kind kind, String operation, Supplier<CompletableFuture<T>> call){
+        if (!limiterEnabled && !breakerEnabled) {
+            return call.get();
+        }
+        Budget budget = budgets.get(kind);
+        boolean probe;
+        try {
+            probe = budget.acquire(0);
+        } catch (EsRejectedExecutionException | InterruptedException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            budget.release(operation, start, e, probe);
+            throw e;
+        }
+        future.whenComplete((result, e) -> budget.release(operation, start, e, probe));
+        return future;
+    }
+
+    public int getLimit(Kind kind){
+        return (int) budgets.get(kind).limit();
+    }
+
+    public int getInFlight(Kind kind){
+        return budgets.get(kind).inFlight();
+    }
+
+    public int getBreakerState(){
+        return breaker.state();
+    }
+
+    private enum Permit {
+        DENIED,
+        NORMAL,
+        PROBE       //熔断半开时放行的探测请求，只有它的结果决定是否关闭
+    }
+
+    private enum Outcome {
+        SUCCESS,    //成功或与集群状态无关的失败，如404、409、400
+        OVERLOAD,   //429、503、EsRejectedExecutionException
+        FAILURE     //连接失败、超时、其他5xx
+    }
+
+    private static Outcome classify(Throwable e){
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e == null) {
+            return Outcome.SUCCESS;
+        }
+        if (e instanceof EsRejectedExecutionException) {
+            return Outcome.OVERLOAD;
+        }
+        int status = -1;
+        if (e instanceof ElasticsearchException) {
+            status = ((ElasticsearchException) e).status().getStatus();
+        } else if (e instanceof ResponseException) {
+            status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+        } else if (e instanceof IOException) {
+            return Outcome.FAILURE;
+        }
+        if (status == 429 || status == 503) {
+            return Outcome.OVERLOAD;
+        }
+        return status >= 500 ? Outcome.FAILURE : Outcome.SUCCESS;
+    }
+
+    private class Budget {
+        private final int max;
+        private double limit;
+        private int inFlight;
+
+        //按操作统计的长期平均耗时(纳秒)
+        private final Map<String, Double> longTermNanos = new HashMap<>();
+        //当前窗口内按操作统计的耗时合计和请求数
+        private final Map<String, long[]> windowNanos = new HashMap<>();
+        private long windowStart = System.nanoTime();
+        private int windowSamples;
+        private boolean windowOverload;
+        private boolean windowSaturated;
+
+        private final Counter rejectedLimit;
+        private final Counter rejectedBreaker;
+
+        Budget(Kind kind, int initial, int max) {
+            this.max = Math.max(max, minLimit);
+            this.limit = Math.min(Math.max(initial, minLimit), this.max);
+            String tag = kind.name().toLowerCase();
+            Gauge.builder("es.limiter.limit", this, Budget::limit).tag("budget", tag).register(registry);
+            Gauge.builder("es.limiter.in-flight", this, Budget::inFlight).tag("budget", tag).register(registry);
+            rejectedLimit = Counter.builder("es.limiter.rejected").tags("budget", tag, "reason", "limit").register(registry);
+            rejectedBreaker = Counter.builder("es.limiter.rejected").tags("budget", tag, "reason", "breaker").register(registry);
+        }
+
+        synchronized double limit(){
+            return limit;
+        }
+
+        synchronized int inFlight(){
+            return inFlight;
+        }
+
+        /**
+         * @return  是否为熔断半开时的探测请求
+         */
+        synchronized boolean acquire(long waitMs) throws InterruptedException {
+            Permit permit = breaker.allow();
+            if (permit == Permit.DENIED) {
+                rejectedBreaker.increment();
+                throw new EsRejectedExecutionException("circuit breaker is open, elasticsearch cluster is unhealthy");
+            }
+            if (limiterEnabled) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+                while (inFlight >= (int) limit) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        if (permit == Permit.PROBE) {
+                            breaker.cancelProbe();
+                        }
+                        rejectedLimit.increment();
+                        throw new EsRejectedExecutionException("too many in-flight requests [" + inFlight + "], limit [" + (int) limit + "]");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            inFlight++;
+            if (inFlight >= (int) limit) {
+                windowSaturated = true;
+            }
+            return permit == Permit.PROBE;
+        }
+
+        void release(String operation, long start, Throwable e, boolean probe){
+            long elapsed = System.nanoTime() - start;
+            Outcome outcome = classify(e);
+            breaker.record(outcome, probe);
+            synchronized (this) {
+                inFlight--;
+                if (limiterEnabled) {
+                    adjust(operation, elapsed, outcome);
+                }
+                notify();
+            }
+        }
+
+        /**
+         * 记录到当前窗口，窗口结束时调整一次上限
+         */
+        private void adjust(String operation, long elapsed, Outcome outcome){
+            if (outcome == Outcome.FAILURE) {
+                return;   //交给熔断器处理，失败请求的耗时不代表排队情况
+            }
+            if (outcome == Outcome.OVERLOAD) {
+                windowOverload = true;
+            } else {
+                long[] sample = windowNanos.computeIfAbsent(operation, key -> new long[2]);
+                sample[0] += elapsed;
+                sample[1]++;
+            }
+            windowSamples++;
+            long now = System.nanoTime();
+            if (windowSamples < windowMinSamples || now - windowStart < TimeUnit.MILLISECONDS.toNanos(windowMs)) {
+                return;
+            }
+            double gradient = gradient();
+            if (windowOverload) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (gradient < 1) {
+                limit = Math.max(minLimit, limit * gradient);
+            } else if (windowSaturated) {
+                limit = Math.min(max, limit + 1);
+            }
+            windowNanos.clear();
+            windowStart = now;
+            windowSamples = 0;
+            windowOverload = false;
+            windowSaturated = inFlight >= (int) limit;
+        }
+
+        /**
+         * 按请求数加权的各操作gradient，同时更新长期平均
+         */
+        private double gradient(){
+            double weighted = 0;
+            long count = 0;
+            for (Map.Entry<String, long[]> entry : windowNanos.entrySet()) {
+                long[] sample = entry.getValue();
+                double average = (double) sample[0] / sample[1];
+                Double longTerm = longTermNanos.get(entry.getKey());
+                if (longTerm == null) {
+                    longTermNanos.put(entry.getKey(), average);   //第一个窗口只作为长期平均的初始值
+                    continue;
+                }
+                double gradient = average <= 0 ? 1 : tolerance * longTerm / average;
+                weighted += Math.max(0.5, Math.min(1.0, gradient)) * sample[1];
+                count += sample[1];
+                longTermNanos.put(entry.getKey(), longTerm + (average - longTerm) / Math.max(longTermWindows, 1));
+            }
+            return count == 0 ? 1 : weighted / count;
+        }
+    }
+
+    private class Breaker {
+        private final Outcome[] window = new Outcome[Math.max(breakerWindow, 1)];
+        private int next;
+        private int count;
+        private int failures;
+        private long openedAt = -1;
+        private boolean probing;
+
+        /**
+         * @return 0关闭，1半开，2打开
+         */
+        synchronized int state(){
+            if (openedAt < 0) {
+                return 0;
+            }
+            return System.currentTimeMillis() - openedAt >= breakerOpenMs ? 1 : 2;
+        }
+
+        synchronized Permit allow(){
+            if (!breakerEnabled || openedAt < 0) {
+                return Permit.NORMAL;
+            }
+            if (System.currentTimeMillis() - openedAt < breakerOpenMs || probing) {
+                return Permit.DENIED;
+            }
+            probing = true;   //半开：只放行一个探测请求
+            return Permit.PROBE;
+        }
+
+        synchronized void cancelProbe(){
+            probing = false;
+        }
+
+        /**
+         * @param probe  是否为allow()放行的探测请求
+         */
+        synchronized void record(Outcome outcome, boolean probe){
+            if (!breakerEnabled) {
+                return;
+            }
+            boolean failed = outcome != Outcome.SUCCESS;
+            if (openedAt >= 0) {
+                if (!probe) {
+                    return;   //打开前已发出的请求，不代表探测结果
+                }
+                probing = false;
+                if (failed) {
+                    openedAt = System.currentTimeMillis();
+                } else {
+                    openedAt = -1;
+                    reset();
+                }
+                return;
+            }
+            if (count == window.length && window[next] != Outcome.SUCCESS) {
+                failures--;
+            }
+            window[next] = outcome;
+            next = (next + 1) % window.length;
+            count = Math.min(count + 1, window.length);
+            if (failed) {
+                failures++;
+            }
+            if (count >= breakerMinCalls && failures >= breakerFailureRate * count) {
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        private void reset(){
+            next = 0;
+            count = 0;
+            failures = 0;
+        }
+    }
+}
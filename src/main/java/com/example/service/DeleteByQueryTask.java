@@ -0,0 +1,94 @@
+package com.example.service;
+
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/docs-delete-by-query.html#docs-delete-by-query-task-api
+ * 后台执行的delete by query任务，由ESTaskService定时查询Tasks API更新进度
+ */
+public class DeleteByQueryTask {
+
+    private final String taskId;
+    private final ESTaskService tasks;
+    private final CompletableFuture<BulkByScrollResponse> result = new CompletableFuture<>();
+
+    private volatile Map<String, Object> status = Collections.emptyMap();
+
+    DeleteByQueryTask(String taskId, ESTaskService tasks) {
+        this.taskId = taskId;
+        this.tasks = tasks;
+    }
+
+    /**
+     * 任务id，格式为node:id
+     */
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * 最近一次查询到的任务状态，如total、deleted、batches、version_conflicts、requests_per_second、throttled_millis
+     */
+    public Map<String, Object> getStatus() {
+        return status;
+    }
+
+    public long getTotal(){
+        return number("total");
+    }
+
+    public long getDeleted(){
+        return number("deleted");
+    }
+
+    public long getVersionConflicts(){
+        return number("version_conflicts");
+    }
+
+    /**
+     * 任务结束后完成，取消的任务同样正常完成，此时getReasonCancelled()不为null
+     */
+    public CompletableFuture<BulkByScrollResponse> getResult() {
+        return result;
+    }
+
+    public boolean isDone(){
+        return result.isDone();
+    }
+
+    /**
+     * 修改限速，立即生效(降速在当前批次结束后生效)
+     * @param requestsPerSecond  每秒处理的文档数，小于等于0为不限速
+     * @throws IOException
+     */
+    public void rethrottle(float requestsPerSecond) throws IOException {
+        tasks.rethrottle(taskId, requestsPerSecond);
+    }
+
+    /**
+     * 取消任务，已删除的文档不会恢复，结果在任务实际停止后通过getResult返回
+     * @throws IOException
+     */
+    public void cancel() throws IOException {
+        tasks.cancel(taskId);
+    }
+
+    void update(Map<String, Object> status){
+        this.status = status == null ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap(status);
+    }
+
+    private long number(String field){
+        Object value = status.get(field);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DeleteByQueryTask{" + taskId + ", " + status + '}';
+    }
+}
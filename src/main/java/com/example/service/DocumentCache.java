@@ -0,0 +1,205 @@
+package com.example.service;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * getDocument的本地缓存，按条数(LRU)和TTL淘汰
+ * 本服务写入文档时会留下带版本号的失效标记：写入期间发起的读取结果不会回填缓存，版本号低于本地写入版本的结果也不会回填
+ * 失效标记单独保存es.cache.marker-ttl-ms，不计入max-size，批量写入时不会挤掉缓存的热点文档
+ */
+@Component
+public class DocumentCache {
+
+    @Value("${es.cache.enabled:false}")
+    private boolean enabled;
+    @Value("${es.cache.max-size:10000}")
+    private int maxSize;
+    @Value("${es.cache.ttl-ms:60000}")
+    private long ttlMs;
+    @Value("${es.cache.marker-ttl-ms:30000}")
+    private long markerTtlMs;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 失效标记，按写入顺序排列即按过期时间排列，同样由entries的锁保护
+     */
+    private final LinkedHashMap<String, Marker> markers = new LinkedHashMap<>();
+
+    /**
+     * 每次失效递增，用于判断读取期间是否发生过本地写入
+     */
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 读取前获取当前epoch，回填时传给put
+     */
+    public long epoch(){
+        return epoch.get();
+    }
+
+    /**
+     * 获取缓存的文档
+     * @param index  索引库
+     * @param id     文档id
+     * @return       未命中或已过期时返回null
+     */
+    public GetResponse get(String index, String id){
+        String key = key(index, id);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                evictionCount.incrementAndGet();
+                entry = null;
+            }
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return entry.response;
+        }
+    }
+
+    /**
+     * 回填读取结果
+     * @param response     读取结果
+     * @param startEpoch   发起读取前的epoch
+     */
+    public void put(String index, String id, GetResponse response, long startEpoch){
+        String key = key(index, id);
+        synchronized (entries) {
+            long now = System.currentTimeMillis();
+            expireMarkers(now);
+            Marker marker = markers.get(key);
+            if (marker != null) {
+                if (marker.epoch > startEpoch) {
+                    return;   //读取期间发生了本地写入
+                }
+                if (response.isExists() && response.getVersion() < marker.version) {
+                    return;   //读到的是旧版本
+                }
+            }
+            Entry existing = entries.get(key);
+            if (existing != null && response.isExists() && response.getVersion() < existing.version) {
+                return;
+            }
+            entries.put(key, new Entry(response, response.getVersion(), now + ttlMs));
+            evictOverflow();
+        }
+    }
+
+    /**
+     * 本地写入时使缓存失效
+     * @param version   写入后的文档版本，写入前调用时传-1
+     */
+    public void invalidate(String index, String id, long version){
+        if (!enabled) {
+            return;
+        }
+        String key = key(index, id);
+        long current = epoch.incrementAndGet();
+        invalidationCount.incrementAndGet();
+        synchronized (entries) {
+            long now = System.currentTimeMillis();
+            expireMarkers(now);
+            Entry existing = entries.remove(key);
+            Marker marker = markers.remove(key);   //重新插入到末尾，保持按过期时间排列
+            long minVersion = version;
+            if (existing != null) {
+                minVersion = Math.max(minVersion, existing.version);
+            }
+            if (marker != null) {
+                minVersion = Math.max(minVersion, marker.version);
+            }
+            markers.put(key, new Marker(minVersion, current, now + markerTtlMs));
+        }
+    }
+
+    public long getHitCount(){
+        return hitCount.get();
+    }
+
+    public long getMissCount(){
+        return missCount.get();
+    }
+
+    public long getEvictionCount(){
+        return evictionCount.get();
+    }
+
+    public long getInvalidationCount(){
+        return invalidationCount.get();
+    }
+
+    public int size(){
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void expireMarkers(long now){
+        Iterator<Marker> iterator = markers.values().iterator();
+        while (iterator.hasNext() && iterator.next().expireAt <= now) {
+            iterator.remove();
+        }
+    }
+
+    private void evictOverflow(){
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private static String key(String index, String id){
+        return index + "/" + id;
+    }
+
+    private static class Entry {
+        private final GetResponse response;
+        private final long version;
+        private final long expireAt;
+
+        Entry(GetResponse response, long version, long expireAt) {
+            this.response = response;
+            this.version = version;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 本地写入留下的失效标记
+     */
+    private static class Marker {
+        private final long version;
+        private final long epoch;
+        private final long expireAt;
+
+        Marker(long version, long epoch, long expireAt) {
+            this.version = version;
+            this.epoch = epoch;
+            this.expireAt = expireAt;
+        }
+    }
+}
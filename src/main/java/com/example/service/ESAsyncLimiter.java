@@ -0,0 +1,151 @@
+package com.example.service;
+
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * 限制异步请求的并发数：超过es.async.max-in-flight的请求进入队列，队列满(或es.async.max-queued为0)时直接以EsRejectedExecutionException失败
+ * 取消排队中的请求会将其移出队列，不会再发送；取消已发送的请求会一并取消call返回的future(由其中止HTTP请求)，并发名额随即释放
+ */
+@Component
+public class ESAsyncLimiter {
+
+    @Value("${es.async.max-in-flight:64}")
+    private int maxInFlight;
+    @Value("${es.async.max-queued:1000}")
+    private int maxQueued;
+
+    private final Deque<Task<?>> queue = new ArrayDeque<>();
+
+    /**
+     * 当前线程正在启动请求时，新拿到名额的请求放入这里由外层循环启动，
+     * 避免同步完成的请求(如被拒绝、命中缓存)在回调中逐个递归启动下一个而栈溢出
+     */
+    private static final ThreadLocal<Deque<Task<?>>> starting = new ThreadLocal<>();
+
+    private int inFlight;
+
+
+    /**
+     * 提交一个异步请求
+     * @param call   发送请求，返回请求结果，取消该结果时应中止请求
+     * @return       请求结果，可取消
+     */
+    public <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call){
+        Task<T> task = new Task<>(call);
+        boolean start = false;
+        synchronized (queue) {
+            if (inFlight < maxInFlight) {
+                inFlight++;
+                start = true;
+            } else if (queue.size() < maxQueued) {
+                queue.add(task);
+            } else {
+                task.result.completeExceptionally(new EsRejectedExecutionException(
+                        "too many in-flight requests [" + inFlight + "], queue is full [" + maxQueued + "]"));
+                return task.result;
+            }
+        }
+        if (start) {
+            start(task);
+        } else {
+            task.result.whenComplete((r, e) -> {
+                if (task.result.isCancelled()) {
+                    synchronized (queue) {
+                        queue.remove(task);
+                    }
+                }
+            });
+        }
+        return task.result;
+    }
+
+    public int getInFlight(){
+        synchronized (queue) {
+            return inFlight;
+        }
+    }
+
+    public int getQueued(){
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * 一个请求结束后，名额直接交给队列中下一个未取消的请求
+     */
+    private void release(){
+        Task<?> next;
+        synchronized (queue) {
+            do {
+                next = queue.poll();
+            } while (next != null && next.result.isDone());
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        start(next);
+    }
+
+    private static void start(Task<?> task){
+        Deque<Task<?>> pending = starting.get();
+        if (pending != null) {
+            pending.add(task);
+            return;
+        }
+        pending = new ArrayDeque<>();
+        starting.set(pending);
+        try {
+            for (Task<?> next = task; next != null; next = pending.poll()) {
+                next.start();
+            }
+        } finally {
+            starting.remove();
+        }
+    }
+
+    private class Task<T> {
+        private final Supplier<CompletableFuture<T>> call;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Supplier<CompletableFuture<T>> call) {
+            this.call = call;
+        }
+
+        void start(){
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            CompletableFuture<T> sent = future;
+            result.whenComplete((response, e) -> {
+                if (result.isCancelled()) {
+                    sent.cancel(false);   //完成回调随即释放名额
+                }
+            });
+            future.whenComplete((response, e) -> {
+                try {
+                    if (e == null) {
+                        result.complete(response);
+                    } else {
+                        result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                } finally {
+                    release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.service;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+ * 基于BulkProcessor的批量写入，按条数、字节数、时间间隔触发flush，每条写入通过future返回结果
+ * BulkProcessor在第一次写入时才创建，不使用批量模式时不会启动任何后台线程
+ */
+@Component
+public class ESBulkWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ESBulkWriter.class);
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Value("${es.bulk.actions:1000}")
+    private int bulkActions;
+    @Value("${es.bulk.size-mb:5}")
+    private long bulkSizeMb;
+    @Value("${es.bulk.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+    @Value("${es.bulk.concurrent-requests:1}")
+    private int concurrentRequests;
+    @Value("${es.bulk.backoff-delay-ms:100}")
+    private long backoffDelayMs;
+    @Value("${es.bulk.backoff-retries:3}")
+    private int backoffRetries;
+
+    /**
+     * 每个写入请求对应的future，按对象引用关联，429重试时重新发送的也是同一个请求对象
+     */
+    private final Map<DocWriteRequest<?>, Pending> pending =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private volatile BulkProcessor processor;
+
+
+    /**
+     * 添加一条写入请求(index/update/delete)
+     * @param request   写入请求
+     * @return          该条请求的执行结果，失败时future以异常结束
+     */
+    public CompletableFuture<BulkItemResponse> add(DocWriteRequest<?> request){
+        CompletableFuture<BulkItemResponse> future = new CompletableFuture<>();
+        //需要先登记future，BulkProcessor达到阈值时可能在add内同步执行bulk
+        pending.put(request, new Pending(future));
+        try {
+            processor().add(request);
+        } catch (RuntimeException e) {
+            pending.remove(request);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 立即发送当前缓冲区中的请求
+     */
+    public void flush(){
+        BulkProcessor current = processor;
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        BulkProcessor current = processor;
+        if (current != null) {
+            current.awaitClose(30, TimeUnit.SECONDS);
+        }
+    }
+
+    private BulkProcessor processor(){
+        BulkProcessor current = processor;
+        if (current == null) {
+            synchronized (this) {
+                current = processor;
+                if (current == null) {
+                    current = buildProcessor();
+                    processor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private BulkProcessor buildProcessor(){
+        BulkProcessor.Listener listener = new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+                logger.debug("bulk [{}] sending {} actions", executionId, request.numberOfActions());
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                if (response.hasFailures()) {
+                    logger.warn("bulk [{}] has failures: {}", executionId, response.buildFailureMessage());
+                }
+                complete(request, null);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                logger.error("bulk [{}] failed", executionId, failure);
+                complete(request, failure);
+            }
+        };
+        return BulkProcessor.builder(
+                (request, bulkListener) -> client.bulkAsync(request, requestOptions, ActionListener.wrap(response -> {
+                    record(request, response);
+                    bulkListener.onResponse(response);
+                }, bulkListener::onFailure)), listener)
+                .setBulkActions(bulkActions)    //条数阈值
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))   //字节数阈值
+                .setFlushInterval(TimeValue.timeValueMillis(flushIntervalMs))   //时间间隔
+                .setConcurrentRequests(concurrentRequests)   //同时执行的bulk数，0为同步执行
+                //429(EsRejectedExecutionException)时按指数退避重试
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(backoffDelayMs), backoffRetries))
+                .build();
+    }
+
+    /**
+     * 记录每次实际发送(包括429重试)的结果
+     * 重试时BulkProcessor只重新发送被拒绝的请求，最终汇总的item顺序和itemId都不再与原请求一致，
+     * 写入别名时item中是实际的索引名，自动生成id的请求也没有id可以匹配，因此在每次发送时按位置对应到请求对象
+     */
+    private void record(BulkRequest request, BulkResponse response){
+        List<DocWriteRequest<?>> requests = request.requests();
+        for (BulkItemResponse item : response.getItems()) {
+            Pending entry = pending.get(requests.get(item.getItemId()));
+            if (entry != null) {
+                entry.item = item;
+            }
+        }
+    }
+
+    /**
+     * 将bulk结果分发到各请求的future，使用record记录的最后一次发送的结果
+     * @param failure   整个bulk失败时的异常，之前已经写入成功的请求仍返回其结果
+     */
+    private void complete(BulkRequest request, Throwable failure){
+        for (DocWriteRequest<?> docWriteRequest : request.requests()) {
+            Pending entry = pending.remove(docWriteRequest);
+            if (entry == null) {
+                continue;
+            }
+            BulkItemResponse item = entry.item;
+            if (item != null && (failure == null || item.status() != RestStatus.TOO_MANY_REQUESTS)) {
+                completeItem(entry.future, item);
+            } else {
+                entry.future.completeExceptionally(failure != null ? failure : new IllegalStateException("no bulk item response for request"));
+            }
+        }
+    }
+
+    private static void completeItem(CompletableFuture<BulkItemResponse> future, BulkItemResponse item){
+        if (item.isFailed()) {
+            future.completeExceptionally(item.getFailure().getCause());
+        } else {
+            future.complete(item);
+        }
+    }
+
+    private static class Pending {
+        private final CompletableFuture<BulkItemResponse> future;
+        private volatile BulkItemResponse item;
+
+        Pending(CompletableFuture<BulkItemResponse> future) {
+            this.future = future;
+        }
+    }
+}
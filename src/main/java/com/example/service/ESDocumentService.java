@@ -1,30 +1,62 @@
 package com.example.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.*;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateResponse;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
 import org.elasticsearch.search.sort.ScoreSortBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Component
 public class ESDocumentService {
@@ -32,6 +64,52 @@ public class ESDocumentService {
     @Autowired
     private RestHighLevelClient client;
 
+    @Autowired
+    private ESBulkWriter bulkWriter;
+
+    /**
+     * streamDocument的tiebreaker字段，需为保存文档id副本的keyword字段(doc_values默认开启)
+     * 按_id排序会在堆上加载_id的fielddata，数据量大时不要改回_id
+     */
+    @Value("${es.stream.tiebreaker-field:id}")
+    private String tiebreakerField;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private GetCoalescer getCoalescer;
+
+    @Autowired
+    private UpdateCoalescer updateCoalescer;
+
+    @Autowired
+    private TimeSeriesIndices timeSeries;
+
+    @Autowired
+    private SlowQueryProfiler profiler;
+
+    @Autowired
+    private ESMetrics metrics;
+
+    @Autowired
+    private ESAsyncLimiter asyncLimiter;
+
+    @Autowired
+    private SearchTemplates searchTemplates;
+
+    @Autowired
+    private HedgedReads reads;
+
+    @Autowired
+    private AdaptiveLimiter limiter;
+
+    @Autowired
+    private ESTaskService taskService;
+
+    @Value("${es.msearch.max-concurrent-search-requests:0}")
+    private int maxConcurrentSearchRequests;
+
 
     /**
      * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-index.html
@@ -43,35 +121,169 @@ public class ESDocumentService {
      * @throws Exception
      */
     public IndexResponse createDocumet(Map<String ,Object> jsonMap,String index,String id) throws Exception{
-        IndexRequest request = new IndexRequest(index).id(id).source(jsonMap);
-        return client.index(request, RequestOptions.DEFAULT);
+        return index(new IndexRequest(index).id(id).source(jsonMap));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-index.html
+     * 使用已序列化的json创建文档，直接作为请求体发送，不再经过Map转换
+     * @param json       json数据
+     * @param index      索引库
+     * @param id         文档id
+     * @return
+     * @throws Exception
+     */
+    public IndexResponse createDocumet(byte[] json,String index,String id) throws Exception{
+        return createDocumet(new BytesArray(json), index, id);
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-index.html
+     * 使用已序列化的json创建文档
+     * @param json       json数据
+     * @param index      索引库
+     * @param id         文档id
+     * @return
+     * @throws Exception
+     */
+    public IndexResponse createDocumet(BytesReference json,String index,String id) throws Exception{
+        return index(new IndexRequest(index).id(id).source(json, XContentType.JSON));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-index.html
+     * 使用对象创建文档，通过可复用的ObjectWriter一次序列化为json
+     * @param document   文档对象
+     * @param writer     对应类型的ObjectWriter，如objectMapper.writerFor(Course.class)
+     * @param index      索引库
+     * @param id         文档id
+     * @return
+     * @throws Exception
+     */
+    public <T> IndexResponse createDocumet(T document, ObjectWriter writer, String index, String id) throws Exception{
+        return createDocumet(writer.writeValueAsBytes(document), index, id);
+    }
+
+    /**
+     * es.timeseries.aliases中的别名按文档时间写入对应的索引
+     */
+    private IndexResponse index(IndexRequest request) throws Exception{
+        String index = request.index();
+        String id = request.id();
+        timeSeries.route(request);
+        return write("createDocumet", index, options -> {
+            documentCache.invalidate(index, id, -1);
+            IndexResponse response = client.index(request, options);
+            documentCache.invalidate(index, id, response.getVersion());
+            return response;
+        });
     }
 
 
     /**
      * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-get.html
-     * 获取文档
+     * 获取文档，开启es.cache.enabled时优先读取本地缓存，开启es.coalesce.enabled时与并发的读取合并为_mget
      * @param index      索引库
      * @param id         文档id
      * @return
      * @throws Exception
      */
     public GetResponse getDocument(String index, String id) throws Exception{
-        GetRequest getRequest = new GetRequest(index,id);
-        return client.get(getRequest, RequestOptions.DEFAULT);
+        return metrics.record("getDocument", index, options -> {
+            if (!documentCache.isEnabled()) {
+                return limiter.call(AdaptiveLimiter.Kind.READ, "getDocument", () -> get(index, id, options));
+            }
+            GetResponse cached = documentCache.get(index, id);
+            if (cached != null) {
+                return cached;
+            }
+            long epoch = documentCache.epoch();
+            GetResponse response = limiter.call(AdaptiveLimiter.Kind.READ, "getDocument", () -> get(index, id, options));
+            documentCache.put(index, id, response, epoch);
+            return response;
+        });
     }
 
 
     /**
      * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-exists.html
-     * 判断文档是否存在
+     * 判断文档是否存在，使用HEAD请求，不返回_source
      * @param index      索引库
      * @param id         文档id
      * @return
      * @throws Exception
      */
-    public GetResponse exists(String index, String id) throws Exception{
-        return client.get(new GetRequest(index,id),RequestOptions.DEFAULT);
+    public boolean exists(String index, String id) throws Exception{
+        return read("exists", index, options -> {
+            if (getCoalescer.isEnabled()) {
+                return await(getCoalescer.get(index, id, false)).isExists();
+            }
+            GetRequest getRequest = new GetRequest(index,id);
+            getRequest.fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);   //不返回_source
+            getRequest.storedFields("_none_");   //不返回stored字段
+            return reads.exists(getRequest, options);
+        });
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-multi-get.html
+     * 批量判断文档是否存在，一次_mget请求，不返回_source
+     * @param index      索引库
+     * @param ids        文档id
+     * @return           存在的文档id
+     * @throws Exception
+     */
+    public Set<String> existsAll(String index, Collection<String> ids) throws Exception{
+        if (ids.isEmpty()) {
+            return new HashSet<>();
+        }
+        MultiGetRequest request = existsAllRequest(index, ids);
+        return foundIds(read("existsAll", index, options -> client.mget(request, options)));
+    }
+
+    private static MultiGetRequest existsAllRequest(String index, Collection<String> ids){
+        MultiGetRequest request = new MultiGetRequest();
+        for (String id : ids) {
+            request.add(new MultiGetRequest.Item(index, id)
+                    .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE)
+                    .storedFields("_none_"));
+        }
+        return request;
+    }
+
+    private static Set<String> foundIds(MultiGetResponse response) throws Exception{
+        Set<String> found = new HashSet<>();
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed()) {
+                throw item.getFailure().getFailure();
+            }
+            if (item.getResponse().isExists()) {
+                found.add(item.getId());
+            }
+        }
+        return found;
+    }
+
+    private GetResponse get(String index, String id, RequestOptions options) throws Exception{
+        if (getCoalescer.isEnabled()) {
+            return await(getCoalescer.get(index, id, true));
+        }
+        return reads.get(new GetRequest(index,id), options);
+    }
+
+    /**
+     * 等待异步结果，并抛出原始异常
+     */
+    private static <T> T await(CompletableFuture<T> future) throws Exception{
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
     }
 
 
@@ -84,7 +296,12 @@ public class ESDocumentService {
      * @throws Exception
      */
     public DeleteResponse deleteDocument(String index, String id) throws Exception{
-        return client.delete(new DeleteRequest(index,id), RequestOptions.DEFAULT);
+        return write("deleteDocument", index, options -> {
+            documentCache.invalidate(index, id, -1);
+            DeleteResponse response = client.delete(new DeleteRequest(index,id), options);
+            documentCache.invalidate(index, id, response.getVersion());
+            return response;
+        });
     }
 
 
@@ -98,7 +315,131 @@ public class ESDocumentService {
      * @throws Exception
      */
     public UpdateResponse updateDocument(Map<String,Object> jsonMap,String index, String id) throws Exception{
-        return client.update(new UpdateRequest(index, id).doc(jsonMap),RequestOptions.DEFAULT);
+        return write("updateDocument", index, options -> {
+            documentCache.invalidate(index, id, -1);
+            UpdateResponse response = client.update(new UpdateRequest(index, id).doc(jsonMap),options);
+            documentCache.invalidate(index, id, response.getVersion());
+            return response;
+        });
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+     * 批量模式创建文档，请求进入BulkProcessor缓冲区，达到阈值后统一发送
+     * @param jsonMap    json数据
+     * @param index      索引库
+     * @param id         文档id
+     * @return           该文档的写入结果
+     */
+    public CompletableFuture<BulkItemResponse> createDocumetBulk(Map<String ,Object> jsonMap,String index,String id){
+        return bulkWrite("createDocumetBulk", new IndexRequest(index).id(id).source(jsonMap));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+     * 批量模式使用已序列化的json创建文档
+     * @param json       json数据
+     * @param index      索引库
+     * @param id         文档id
+     * @return           该文档的写入结果
+     */
+    public CompletableFuture<BulkItemResponse> createDocumetBulk(byte[] json,String index,String id){
+        return createDocumetBulk(new BytesArray(json), index, id);
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+     * 批量模式使用已序列化的json创建文档
+     * @param json       json数据
+     * @param index      索引库
+     * @param id         文档id
+     * @return           该文档的写入结果
+     */
+    public CompletableFuture<BulkItemResponse> createDocumetBulk(BytesReference json,String index,String id){
+        return bulkWrite("createDocumetBulk", new IndexRequest(index).id(id).source(json, XContentType.JSON));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+     * 批量模式使用对象创建文档，通过可复用的ObjectWriter一次序列化为json
+     * @param document   文档对象
+     * @param writer     对应类型的ObjectWriter
+     * @param index      索引库
+     * @param id         文档id
+     * @return           该文档的写入结果
+     * @throws JsonProcessingException  序列化失败
+     */
+    public <T> CompletableFuture<BulkItemResponse> createDocumetBulk(T document, ObjectWriter writer, String index, String id) throws JsonProcessingException{
+        return createDocumetBulk(writer.writeValueAsBytes(document), index, id);
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+     * 批量模式更新文档，开启es.update-coalesce时同一文档在窗口内的多次更新合并为一次发送
+     * @param jsonMap  更新的数据
+     * @param index    索引库
+     * @param id       文档id
+     * @return         该文档的更新结果，合并时为合并后的更新结果
+     */
+    public CompletableFuture<BulkItemResponse> updateDocumentBulk(Map<String,Object> jsonMap,String index, String id){
+        if (!updateCoalescer.isEnabled()) {
+            return bulkWrite("updateDocumentBulk", new UpdateRequest(index, id).doc(jsonMap));
+        }
+        documentCache.invalidate(index, id, -1);
+        return metrics.recordAsync("updateDocumentBulk", index, options -> updateCoalescer.update(index, id, jsonMap)).whenComplete((item, e) ->
+                documentCache.invalidate(index, id, item == null ? -1 : item.getVersion()));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-bulk.html
+     * 批量模式删除文档
+     * @param index     索引库
+     * @param id        文档id
+     * @return          该文档的删除结果
+     */
+    public CompletableFuture<BulkItemResponse> deleteDocumentBulk(String index, String id){
+        return bulkWrite("deleteDocumentBulk", new DeleteRequest(index, id));
+    }
+
+    /**
+     * 立即发送批量模式下缓冲的请求，包括正在合并的更新
+     */
+    public void flushBulk(){
+        updateCoalescer.flush();
+    }
+
+    /**
+     * 立即发送正在合并的更新，并等待已发送的合并更新完成
+     * @return   全部完成时结束，各更新的失败通过updateDocumentBulk返回的future获取
+     */
+    public CompletableFuture<Void> awaitUpdates(){
+        return updateCoalescer.flush();
+    }
+
+    /**
+     * 批量写入入队时和完成后各失效一次缓存
+     * 该文档有正在合并的更新时先将其入队，保持与调用顺序一致
+     */
+    private CompletableFuture<BulkItemResponse> bulkWrite(String method, DocWriteRequest<?> request){
+        String index = request.index();
+        String id = request.id();
+        if (updateCoalescer.isEnabled() && id != null) {
+            updateCoalescer.flush(index, id);
+        }
+        documentCache.invalidate(index, id, -1);
+        return metrics.recordAsync(method, index, options -> {
+            if (request instanceof IndexRequest) {
+                try {
+                    timeSeries.route((IndexRequest) request);
+                } catch (IOException e) {
+                    CompletableFuture<BulkItemResponse> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                }
+            }
+            return bulkWriter.add(request);
+        }).whenComplete((item, e) ->
+                documentCache.invalidate(index, id, item == null ? -1 : item.getVersion()));
     }
 
     /**
@@ -112,7 +453,31 @@ public class ESDocumentService {
     public BulkByScrollResponse deleteByQueryDocument(QueryBuilder queryBuilder, String ...indexs) throws Exception{
         DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(indexs);
         deleteByQueryRequest.setQuery(queryBuilder);
-        return client.deleteByQuery(deleteByQueryRequest, RequestOptions.DEFAULT);
+        return write("deleteByQueryDocument", ESMetrics.indexTag(indexs), options -> client.deleteByQuery(deleteByQueryRequest, options));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/docs-delete-by-query.html#docs-delete-by-query-task-api
+     * 以后台任务方式根据条件删除文档，不占用调用线程，适合大索引库
+     * @param queryBuilder        查询条件
+     * @param slices              并行slice数，小于等于0时为auto
+     * @param requestsPerSecond   限速，每秒删除的文档数，小于等于0为不限速，可通过rethrottle调整
+     * @param proceedOnConflicts  版本冲突时是否继续
+     * @param indexs              需要删除的索引库（可多个）
+     * @return                    任务句柄，可查询进度、调整限速、取消，结果通过getResult()返回
+     * @throws Exception
+     */
+    public DeleteByQueryTask deleteByQueryDocumentTask(QueryBuilder queryBuilder, int slices, float requestsPerSecond,
+                                                       boolean proceedOnConflicts, String ...indexs) throws Exception{
+        DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(indexs);
+        deleteByQueryRequest.setQuery(queryBuilder);
+        deleteByQueryRequest.setSlices(slices > 0 ? slices : AbstractBulkByScrollRequest.AUTO_SLICES);
+        deleteByQueryRequest.setRequestsPerSecond(requestsPerSecond > 0 ? requestsPerSecond : Float.POSITIVE_INFINITY);
+        if (proceedOnConflicts) {
+            deleteByQueryRequest.setConflicts("proceed");
+        }
+        return write("deleteByQueryDocumentTask", ESMetrics.indexTag(indexs),
+                options -> taskService.submitDeleteByQuery(deleteByQueryRequest, options));
     }
 
 
@@ -126,14 +491,68 @@ public class ESDocumentService {
      *  {"from" : 0, "size" : 1, "query": { "match_all": {} }, "_source" : ["name","studymodel"] }
      */
     public SearchResponse searchAllDocumentByPage(int pageIndex, int pageSize, String ...indexs) throws Exception{
+        return read("searchAllDocumentByPage", ESMetrics.indexTag(indexs), options -> send(searchAllDocumentByPageRequest(pageIndex, pageSize, indexs), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchAllDocumentByPage(SearchShape shape, int pageIndex, int pageSize, String ...indexs) throws Exception{
+        return shaped("searchAllDocumentByPage", searchAllDocumentByPageRequest(pageIndex, pageSize, indexs), shape);
+    }
+
+    /**
+     * 构建searchAllDocumentByPage的查询请求，可单独执行或通过multiSearch合并执行
+     * @param pageIndex   分页索引
+     * @param pageSize    分页数
+     * @param indexs      需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchAllDocumentByPageRequest(int pageIndex, int pageSize, String ...indexs){
         SearchSourceBuilder query = new SearchSourceBuilder().query(QueryBuilders.matchAllQuery());  //构建查询条件
         query.from(pageIndex);    //当前分页起始下标，从0开始
         query.size(pageSize);     //每页显示个数
         query.fetchSource(new String[]{"name","price"},new String[]{});  //source源字段设置过滤，只返回这些字段
-        return client.search(new SearchRequest(indexs).source(query), RequestOptions.DEFAULT);
+        return new SearchRequest(indexs).source(query);
     }
 
 
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-request-body.html#request-body-search-search-after
+     * 使用search_after流式遍历所有文档，不受max_result_window限制，翻页成本不随深度增加
+     * @param pageSize    每次请求的记录数
+     * @param indexs      需要查询的索引库（可多个）
+     * @return            按tiebreaker字段排序的全部记录
+     */
+    public Stream<SearchHit> streamAllDocument(int pageSize, String ...indexs){
+        return streamDocument(QueryBuilders.matchAllQuery(), null, SortOrder.ASC, pageSize, indexs);
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-request-body.html#request-body-search-search-after
+     * 使用search_after流式遍历查询结果，先按sortField排序，再以es.stream.tiebreaker-field作为tiebreaker保证排序稳定
+     * 索引映射中需要有该keyword字段，写入时保存文档id的副本
+     * @param queryBuilder  查询条件
+     * @param sortField     排序字段，为null时只按tiebreaker字段排序
+     * @param order         排序方式
+     * @param pageSize      每次请求的记录数
+     * @param indexs        需要查询的索引库（可多个）
+     * @return              查询结果流，下一页在消费当前页时预取，提前结束时需要关闭(try-with-resources)
+     */
+    public Stream<SearchHit> streamDocument(QueryBuilder queryBuilder, String sortField, SortOrder order, int pageSize, String ...indexs){
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        SearchSourceBuilder query = new SearchSourceBuilder().query(queryBuilder).size(pageSize);
+        if (sortField != null) {
+            query.sort(sortField, order);
+        }
+        query.sort(tiebreakerField, order);   //唯一字段作为tiebreaker，使用doc_values不加载_id的fielddata
+        SearchAfterIterator iterator = new SearchAfterIterator(client, metrics, query, indexs);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);   //提前关闭时放弃预取的下一页
+    }
+
     /**
      * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-search.html
      * 根据条件精准查询
@@ -143,12 +562,28 @@ public class ESDocumentService {
      * { "query": { "term" : { "name": "kimchy" } } }
      */
     public SearchResponse searchByConditionTermQuery(String ...indexs) throws Exception{
+        return read("searchByConditionTermQuery", ESMetrics.indexTag(indexs), options -> send(searchByConditionTermQueryRequest(indexs), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchByConditionTermQuery(SearchShape shape, String ...indexs) throws Exception{
+        return shaped("searchByConditionTermQuery", searchByConditionTermQueryRequest(indexs), shape);
+    }
+
+    /**
+     * 构建searchByConditionTermQuery的查询请求，可单独执行或通过multiSearch合并执行
+     * @param indexs  需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchByConditionTermQueryRequest(String ...indexs){
         //1.根据Term Query进行精确查询，在搜索时会整体匹配关键字，不再将关键字分词。
         TermQueryBuilder termQueryBuilder = QueryBuilders.termQuery("name", "kimchy");
         SearchSourceBuilder query = new SearchSourceBuilder().query(termQueryBuilder);  //构建查询条件
 //        TermQueryBuilder ids = QueryBuilders.termQuery("_id", new String[]{"1234567"});   //根据id,可以多个
 //        query.query(ids);
-        return client.search(new SearchRequest(indexs).source(query),RequestOptions.DEFAULT);
+        return new SearchRequest(indexs).source(query);
     }
 
 
@@ -162,6 +597,22 @@ public class ESDocumentService {
      * { "query": { "match" : { "name" : { "query" : "spring开发", "operator" : "or" } } },"sort" : [ {"price" : "asc" }, { "_score" : "asc" } ] }
      */
     public SearchResponse searchByConditionMatchQeuryWithOrder(String ...index) throws Exception{
+        return read("searchByConditionMatchQeuryWithOrder", ESMetrics.indexTag(index), options -> send(searchByConditionMatchQeuryWithOrderRequest(index), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchByConditionMatchQeuryWithOrder(SearchShape shape, String ...index) throws Exception{
+        return shaped("searchByConditionMatchQeuryWithOrder", searchByConditionMatchQeuryWithOrderRequest(index), shape);
+    }
+
+    /**
+     * 构建searchByConditionMatchQeuryWithOrder的查询请求，可单独执行或通过multiSearch合并执行
+     * @param index  需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchByConditionMatchQeuryWithOrderRequest(String ...index){
         SearchSourceBuilder query = new SearchSourceBuilder();   //构建查询条件
         //1.将“spring开发”分词，分为spring、开发两个词
         //2.再使用spring和开发两个词去匹配索引中搜索。
@@ -171,10 +622,10 @@ public class ESDocumentService {
         //上边使用的operator = or表示只要有一个词匹配上就得分，如果实现三个词至少有两个词匹配：可以使用minimum_should_match可以指定文档匹配词的占比
         //matchQueryBuilder = QueryBuilders.matchQuery("name", "spring开发") .minimumShouldMatch("50%"); //设置匹配占比
         query.query(matchQueryBuilder);
-        query.fetchSource(false);  //是否设置过滤返回的属性，false即返回所有字段数据
+        query.fetchSource(true);   //返回完整的_source，fetchSource(false)会不返回任何字段
         query.sort("price",SortOrder.ASC)  //设置id倒叙(前面的优先级高)
                 .sort(new ScoreSortBuilder().order(SortOrder.ASC));   //设置分数排序
-        return client.search(new SearchRequest(index).source(query),RequestOptions.DEFAULT);
+        return new SearchRequest(index).source(query);
     }
 
     /**
@@ -186,13 +637,29 @@ public class ESDocumentService {
      *  { "query": { "multi_match" : { "query" : "spring开发", "minimum_should_match": "50%", "fields": [ "name", "description^10" ] }} }
      */
     public SearchResponse searchByConditionMultiQuery(String  ...index) throws Exception{
+        return read("searchByConditionMultiQuery", ESMetrics.indexTag(index), options -> send(searchByConditionMultiQueryRequest(index), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchByConditionMultiQuery(SearchShape shape, String  ...index) throws Exception{
+        return shaped("searchByConditionMultiQuery", searchByConditionMultiQueryRequest(index), shape);
+    }
+
+    /**
+     * 构建searchByConditionMultiQuery的查询请求，可单独执行或通过multiSearch合并执行
+     * @param index  需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchByConditionMultiQueryRequest(String  ...index){
         SearchSourceBuilder query = new SearchSourceBuilder();   //构造搜索条件
         String[] filedName = new String[]{"name","description"};  //需要进行模糊匹配的多个字段名
         query.query(QueryBuilders
                 .multiMatchQuery("spring开发",filedName)   //设置多个字段匹配
                 .minimumShouldMatch("50%")   //设置最低匹配比例
                 .field("description",10));  //设置某个字段权重（即提升description字段的boost权重得分*10.）
-        return client.search(new SearchRequest(index).source(query),RequestOptions.DEFAULT);
+        return new SearchRequest(index).source(query);
     }
 
     /**
@@ -206,6 +673,22 @@ public class ESDocumentService {
      * @throws Exception
      */
     public SearchResponse searchBooleanQuery(String ...index) throws Exception{
+        return read("searchBooleanQuery", ESMetrics.indexTag(index), options -> send(searchBooleanQueryRequest(index), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchBooleanQuery(SearchShape shape, String ...index) throws Exception{
+        return shaped("searchBooleanQuery", searchBooleanQueryRequest(index), shape);
+    }
+
+    /**
+     * 构建searchBooleanQuery的查询请求，可单独执行或通过multiSearch合并执行
+     * @param index  需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchBooleanQueryRequest(String ...index){
         SearchSourceBuilder query = new SearchSourceBuilder();
         ////multiQuery
         MultiMatchQueryBuilder multiMatchQueryBuilder = QueryBuilders
@@ -219,7 +702,7 @@ public class ESDocumentService {
         boolQueryBuilder.must(multiMatchQueryBuilder);   //将multiQuery设置到BoolQueryBuilder中，表明必须满足
         boolQueryBuilder.must(termQueryBuilder);  //将termQueryBuilder设置到BoolQueryBuilder中，表明必须满足
         query.query(boolQueryBuilder);   //设置布尔查询对象
-        return client.search(new SearchRequest(index).source(query),RequestOptions.DEFAULT);
+        return new SearchRequest(index).source(query);
     }
 
     /**
@@ -232,6 +715,22 @@ public class ESDocumentService {
      * { "_source" : [ "name", "studymodel", "description","price"], "query": { "bool" : { "must":[{ "multi_match" : { "match_all": {}}} ],"filter": [ { "term": { "studymodel": "201001" }}, { "range": { "price": { "gte": 5 ,"lte" : 6}}} ] } } }
      */
     public SearchResponse searchByFilter(String ...index) throws Exception{
+        return read("searchByFilter", ESMetrics.indexTag(index), options -> send(searchByFilterRequest(index), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchByFilter(SearchShape shape, String ...index) throws Exception{
+        return shaped("searchByFilter", searchByFilterRequest(index), shape);
+    }
+
+    /**
+     * 构建searchByFilter的查询请求，可单独执行或通过multiSearch合并执行
+     * @param index  需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchByFilterRequest(String ...index){
         SearchSourceBuilder query = new SearchSourceBuilder();   //查询条件构造器
 
         query.fetchSource(new String[]{"name","studymodel","price","description"},new String[]{});   //设置source源字段过滤，即只返回某些字段
@@ -241,7 +740,7 @@ public class ESDocumentService {
         boolQueryBuilder.filter(QueryBuilders.termQuery("studymodel", "201001"));  //从所有中过滤出studymodel=201001的数据
         boolQueryBuilder.filter(QueryBuilders.rangeQuery("price").gte(5).lte(6));   //过滤出price大于5并且小于6的数据
         query.query(boolQueryBuilder);
-        return client.search(new SearchRequest(index).source(query),RequestOptions.DEFAULT);
+        return new SearchRequest(index).source(query);
     }
 
     /**
@@ -252,6 +751,22 @@ public class ESDocumentService {
      * @throws Exception
      */
     public SearchResponse searchByFilterWithHighLight(String ...index) throws Exception{
+        return read("searchByFilterWithHighLight", ESMetrics.indexTag(index), options -> send(searchByFilterWithHighLightRequest(index), options));
+    }
+
+    /**
+     * 按SearchShape裁剪响应，见search(SearchRequest, SearchShape)
+     */
+    public SearchResponse searchByFilterWithHighLight(SearchShape shape, String ...index) throws Exception{
+        return shaped("searchByFilterWithHighLight", searchByFilterWithHighLightRequest(index), shape);
+    }
+
+    /**
+     * 构建searchByFilterWithHighLight的查询请求，可单独执行或通过multiSearch合并执行
+     * @param index  需要查询的索引库（可多个）
+     * @return
+     */
+    public SearchRequest searchByFilterWithHighLightRequest(String ...index){
         SearchSourceBuilder query = new SearchSourceBuilder();   //查询条件构造器
         query.fetchSource(new String[]{"name","studymodel","price","description"},new String[]{});   //设置source源字段过滤，即只返回某些字段
         //布尔查询
@@ -266,7 +781,40 @@ public class ESDocumentService {
         highlightBuilder.postTags("</tag>"); //设置后缀
         highlightBuilder.field("description");  //设置高亮字段
         query.highlighter(highlightBuilder);
-        return client.search(new SearchRequest(index).source(query),RequestOptions.DEFAULT);
+        return new SearchRequest(index).source(query);
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/common-options.html#common-options-response-filtering
+     * 按SearchShape裁剪响应后查询：filter_path、不统计总数、按字段排序时不计算得分、docvalue_fields代替_source、gzip
+     * 如search(searchByFilterRequest("xc_course"), SearchShape.list())
+     * @param request   查询请求，可通过searchXxxRequest方法构建
+     * @param shape     裁剪选项
+     * @return          裁剪后的响应，没有返回的部分为默认值(如hit.getIndex()为null)
+     * @throws Exception
+     */
+    public SearchResponse search(SearchRequest request, SearchShape shape) throws Exception{
+        return shaped("search", request, shape);
+    }
+
+    private SearchResponse shaped(String method, SearchRequest request, SearchShape shape) throws Exception{
+        //单独的method tag，便于在es.client.response.size中对比裁剪前后的响应大小
+        return read(method + "Shaped", ESMetrics.indexTag(request.indices()), options -> send(request, shape, options));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-search-template.html
+     * 使用参数化的查询模板查询，查询结构只定义一次，每次只发送模板id(或原文)和参数
+     * 如searchTemplate(SearchTemplates.FILTER_TERM_RANGE, {studymodel=201001, min_price=5, max_price=6}, "xc_course")与searchByFilter等价
+     * @param name      模板名，见SearchTemplates中的常量或SearchTemplates.register注册的模板
+     * @param params    模板参数
+     * @param index     需要查询的索引库（可多个）
+     * @return
+     * @throws Exception
+     */
+    public SearchResponse searchTemplate(String name, Map<String,Object> params, String ...index) throws Exception{
+        SearchTemplateRequest request = searchTemplates.request(name, params, index);
+        return read("searchTemplate:" + name, ESMetrics.indexTag(index), options -> client.searchTemplate(request, options).getResponse());
     }
 
     /**
@@ -278,21 +826,279 @@ public class ESDocumentService {
      * @throws Exception
      */
     public void searchAsync(ActionListener listener,String ...index) throws Exception{
-        SearchSourceBuilder query = new SearchSourceBuilder();   //查询条件构造器
-        query.fetchSource(new String[]{"name","studymodel","price","description"},new String[]{});   //设置source源字段过滤，即只返回某些字段
-        //布尔查询
-        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
-        boolQueryBuilder.must(QueryBuilders.matchAllQuery());  //使用查询所有数据
-        boolQueryBuilder.filter(QueryBuilders.matchQuery("description", "spring"));  //从所有中过滤出studymodel=201001的数据
-        boolQueryBuilder.filter(QueryBuilders.rangeQuery("price").gte(5).lte(6));   //过滤出price大于5并且小于6的数据
-        query.query(boolQueryBuilder);
-        //高亮设置
-        HighlightBuilder highlightBuilder = new HighlightBuilder();
-        highlightBuilder.preTags("<tag>");  //设置前缀
-        highlightBuilder.postTags("</tag>"); //设置后缀
-        highlightBuilder.field("description");  //设置高亮字段
-        query.highlighter(highlightBuilder);
-        client.searchAsync(new SearchRequest(index).source(query), RequestOptions.DEFAULT, listener);
+        SearchRequest request = searchByFilterWithHighLightRequest(index);
+        CompletableFuture<SearchResponse> future = async(AdaptiveLimiter.Kind.READ, "searchAsync", ESMetrics.indexTag(index),
+                options -> observe(request, listen(l -> client.searchAsync(timeSeries.prune(request), options, l))));
+        future.whenComplete((response, e) -> {
+            if (e == null) {
+                listener.onResponse(response);
+            } else {
+                listener.onFailure(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+            }
+        });
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-multi-search.html
+     * 将多个查询合并为一次_msearch请求，每个查询的结果通过各自的future返回，单个查询失败不影响其他查询
+     * @param requests  查询请求，可通过searchXxxRequest方法构建
+     * @return          与requests顺序一致的查询结果
+     */
+    public List<CompletableFuture<SearchResponse>> multiSearch(List<SearchRequest> requests){
+        List<CompletableFuture<SearchResponse>> futures = new ArrayList<>(requests.size());
+        if (requests.isEmpty()) {
+            return futures;
+        }
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+        if (maxConcurrentSearchRequests > 0) {
+            multiSearchRequest.maxConcurrentSearchRequests(maxConcurrentSearchRequests);   //服务端同时执行的查询数
+        }
+        for (SearchRequest request : requests) {
+            multiSearchRequest.add(timeSeries.prune(request));
+            futures.add(new CompletableFuture<>());
+        }
+        CompletableFuture<MultiSearchResponse> response = async(AdaptiveLimiter.Kind.READ, "multiSearch", "_msearch",
+                options -> listen(l -> client.msearchAsync(multiSearchRequest, options, l)));
+        response.whenComplete((multiSearchResponse, e) -> {
+            if (e != null) {
+                futures.forEach(future -> future.completeExceptionally(e));
+                return;
+            }
+            MultiSearchResponse.Item[] items = multiSearchResponse.getResponses();
+            for (int i = 0; i < futures.size(); i++) {
+                if (items[i].isFailure()) {
+                    futures.get(i).completeExceptionally(items[i].getFailure());
+                } else {
+                    profiler.observe(requests.get(i), items[i].getResponse());
+                    futures.get(i).complete(items[i].getResponse());
+                }
+            }
+        });
+        return futures;
+    }
+
+    /**
+     * 异步创建文档
+     * @param jsonMap    json数据
+     * @param index      索引库
+     * @param id         文档id
+     * @return           写入结果，受es.async.max-in-flight并发限制
+     */
+    public CompletableFuture<IndexResponse> createDocumetAsync(Map<String ,Object> jsonMap,String index,String id){
+        IndexRequest request = new IndexRequest(index).id(id).source(jsonMap);
+        documentCache.invalidate(index, id, -1);
+        CompletableFuture<IndexResponse> future = async(AdaptiveLimiter.Kind.WRITE, "createDocumetAsync", index,
+                options -> {
+                    try {
+                        timeSeries.route(request);
+                    } catch (IOException e) {
+                        CompletableFuture<IndexResponse> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }
+                    return listen(l -> client.indexAsync(request, options, l));
+                });
+        future.whenComplete((response, e) -> documentCache.invalidate(index, id, response == null ? -1 : response.getVersion()));
+        return future;
+    }
+
+    /**
+     * 异步获取文档
+     * @param index      索引库
+     * @param id         文档id
+     * @return           文档
+     */
+    public CompletableFuture<GetResponse> getDocumentAsync(String index, String id){
+        if (documentCache.isEnabled()) {
+            GetResponse cached = documentCache.get(index, id);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        long epoch = documentCache.epoch();
+        CompletableFuture<GetResponse> future = async(AdaptiveLimiter.Kind.READ, "getDocumentAsync", index, options -> {
+            if (getCoalescer.isEnabled()) {
+                return getCoalescer.get(index, id, true);
+            }
+            return reads.getAsync(new GetRequest(index,id), options);
+        });
+        if (documentCache.isEnabled()) {
+            future.thenAccept(response -> documentCache.put(index, id, response, epoch));
+        }
+        return future;
+    }
+
+    /**
+     * 异步判断文档是否存在，不返回_source
+     * @param index      索引库
+     * @param id         文档id
+     * @return           是否存在
+     */
+    public CompletableFuture<Boolean> existsAsync(String index, String id){
+        return async(AdaptiveLimiter.Kind.READ, "existsAsync", index, options -> {
+            if (getCoalescer.isEnabled()) {
+                return getCoalescer.get(index, id, false).thenApply(GetResponse::isExists);
+            }
+            GetRequest getRequest = new GetRequest(index,id);
+            getRequest.fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
+            getRequest.storedFields("_none_");
+            return reads.existsAsync(getRequest, options);
+        });
+    }
+
+    /**
+     * 异步批量判断文档是否存在
+     * @param index      索引库
+     * @param ids        文档id
+     * @return           存在的文档id
+     */
+    public CompletableFuture<Set<String>> existsAllAsync(String index, Collection<String> ids){
+        if (ids.isEmpty()) {
+            return CompletableFuture.completedFuture(new HashSet<>());
+        }
+        MultiGetRequest request = existsAllRequest(index, ids);
+        return async(AdaptiveLimiter.Kind.READ, "existsAllAsync", index, options -> listen(l -> client.mgetAsync(request, options, ActionListener.wrap(
+                response -> l.onResponse(foundIds(response)), l::onFailure))));
+    }
+
+    /**
+     * 异步删除文档
+     * @param index     索引库
+     * @param id        文档id
+     * @return          删除结果
+     */
+    public CompletableFuture<DeleteResponse> deleteDocumentAsync(String index, String id){
+        documentCache.invalidate(index, id, -1);
+        CompletableFuture<DeleteResponse> future = async(AdaptiveLimiter.Kind.WRITE, "deleteDocumentAsync", index,
+                options -> listen(l -> client.deleteAsync(new DeleteRequest(index,id), options, l)));
+        future.whenComplete((response, e) -> documentCache.invalidate(index, id, response == null ? -1 : response.getVersion()));
+        return future;
+    }
+
+    /**
+     * 异步更新文档
+     * @param jsonMap  更新的数据
+     * @param index    索引库
+     * @param id       文档id
+     * @return         更新结果
+     */
+    public CompletableFuture<UpdateResponse> updateDocumentAsync(Map<String,Object> jsonMap,String index, String id){
+        documentCache.invalidate(index, id, -1);
+        CompletableFuture<UpdateResponse> future = async(AdaptiveLimiter.Kind.WRITE, "updateDocumentAsync", index,
+                options -> listen(l -> client.updateAsync(new UpdateRequest(index, id).doc(jsonMap), options, l)));
+        future.whenComplete((response, e) -> documentCache.invalidate(index, id, response == null ? -1 : response.getVersion()));
+        return future;
+    }
+
+    /**
+     * 异步根据条件删除文档
+     * @param queryBuilder   查询条件
+     * @param indexs         需要删除的索引库（可多个）
+     * @return               删除结果
+     */
+    public CompletableFuture<BulkByScrollResponse> deleteByQueryDocumentAsync(QueryBuilder queryBuilder, String ...indexs){
+        DeleteByQueryRequest deleteByQueryRequest = new DeleteByQueryRequest(indexs);
+        deleteByQueryRequest.setQuery(queryBuilder);
+        return async(AdaptiveLimiter.Kind.WRITE, "deleteByQueryDocumentAsync", ESMetrics.indexTag(indexs),
+                options -> listen(l -> client.deleteByQueryAsync(deleteByQueryRequest, options, l)));
+    }
+
+    public CompletableFuture<SearchResponse> searchAllDocumentByPageAsync(int pageIndex, int pageSize, String ...indexs){
+        return search("searchAllDocumentByPageAsync", searchAllDocumentByPageRequest(pageIndex, pageSize, indexs));
+    }
+
+    public CompletableFuture<SearchResponse> searchByConditionTermQueryAsync(String ...indexs){
+        return search("searchByConditionTermQueryAsync", searchByConditionTermQueryRequest(indexs));
+    }
+
+    public CompletableFuture<SearchResponse> searchByConditionMatchQeuryWithOrderAsync(String ...index){
+        return search("searchByConditionMatchQeuryWithOrderAsync", searchByConditionMatchQeuryWithOrderRequest(index));
+    }
+
+    public CompletableFuture<SearchResponse> searchByConditionMultiQueryAsync(String ...index){
+        return search("searchByConditionMultiQueryAsync", searchByConditionMultiQueryRequest(index));
+    }
+
+    public CompletableFuture<SearchResponse> searchBooleanQueryAsync(String ...index){
+        return search("searchBooleanQueryAsync", searchBooleanQueryRequest(index));
+    }
+
+    public CompletableFuture<SearchResponse> searchByFilterAsync(String ...index){
+        return search("searchByFilterAsync", searchByFilterRequest(index));
+    }
+
+    public CompletableFuture<SearchResponse> searchByFilterWithHighLightAsync(String ...index){
+        return search("searchByFilterWithHighLightAsync", searchByFilterWithHighLightRequest(index));
+    }
+
+    public CompletableFuture<SearchResponse> searchTemplateAsync(String name, Map<String,Object> params, String ...index){
+        return async(AdaptiveLimiter.Kind.READ, "searchTemplateAsync:" + name, ESMetrics.indexTag(index),
+                options -> searchTemplates.requestAsync(name, params, index)
+                        .thenCompose(request -> ESDocumentService.<SearchTemplateResponse>listen(l -> client.searchTemplateAsync(request, options, l)))
+                        .thenApply(SearchTemplateResponse::getResponse));
+    }
+
+    private CompletableFuture<SearchResponse> search(String method, SearchRequest request){
+        return async(AdaptiveLimiter.Kind.READ, method, ESMetrics.indexTag(request.indices()), options -> observe(request, reads.searchAsync(timeSeries.prune(request), options)));
+    }
+
+    /**
+     * 同步读请求统一经过自适应并发限制和指标统计
+     */
+    private <T> T read(String method, String index, ESMetrics.ESCall<T> call) throws Exception{
+        return metrics.record(method, index, options -> limiter.call(AdaptiveLimiter.Kind.READ, method, () -> call.call(options)));
+    }
+
+    /**
+     * 同步查询的公共路径，es.timeseries.aliases中的别名先按range条件裁剪为与时间范围重叠的索引，
+     * 完成后交给SlowQueryProfiler判断是否需要在后台profile
+     */
+    private SearchResponse send(SearchRequest request, RequestOptions options) throws Exception{
+        SearchResponse response = reads.search(timeSeries.prune(request), options);
+        profiler.observe(request, response);
+        return response;
+    }
+
+    private SearchResponse send(SearchRequest request, SearchShape shape, RequestOptions options) throws Exception{
+        SearchResponse response = reads.search(timeSeries.prune(request), shape, options);
+        profiler.observe(request, response);
+        return response;
+    }
+
+    /**
+     * 异步查询成功后交给SlowQueryProfiler
+     */
+    private CompletableFuture<SearchResponse> observe(SearchRequest request, CompletableFuture<SearchResponse> future){
+        future.thenAccept(response -> profiler.observe(request, response));
+        return future;
+    }
+
+    /**
+     * 同步写请求统一经过自适应并发限制和指标统计
+     */
+    private <T> T write(String method, String index, ESMetrics.ESCall<T> call) throws Exception{
+        return metrics.record(method, index, options -> limiter.call(AdaptiveLimiter.Kind.WRITE, method, () -> call.call(options)));
+    }
+
+    /**
+     * 异步请求统一经过排队、自适应并发限制和指标统计
+     */
+    private <T> CompletableFuture<T> async(AdaptiveLimiter.Kind kind, String method, String index, Function<RequestOptions, CompletableFuture<T>> call){
+        return asyncLimiter.submit(() -> metrics.recordAsync(method, index, options -> limiter.callAsync(kind, method, () -> call.apply(options))));
+    }
+
+    /**
+     * 将ActionListener形式的异步调用转换为CompletableFuture，取消future时中止已发送的请求
+     */
+    private static <T> CompletableFuture<T> listen(Function<ActionListener<T>, Cancellable> call){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Cancellable cancellable = call.apply(ActionListener.wrap(future::complete, future::completeExceptionally));
+        future.whenComplete((response, e) -> {
+            if (future.isCancelled()) {
+                cancellable.cancel();
+            }
+        });
+        return future;
     }
 
 }
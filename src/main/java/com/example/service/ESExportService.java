@@ -0,0 +1,270 @@
+package com.example.service;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-request-body.html#sliced-scroll
+ * 使用sliced scroll并行导出索引库到NDJSON文件
+ * 每行格式：{"_index":"...","_id":"...","_source":{...}}，_source直接写入原始字节，不解析成Map
+ */
+@Component
+public class ESExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ESExportService.class);
+
+    private static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 每个slice的写缓冲大小
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+
+    /**
+     * 导出索引库的全部文档
+     * @param index          索引库
+     * @param output         导出文件，filePerSlice为true时作为文件名前缀，每个slice写入output.{slice}
+     * @param slices         并行slice数，小于等于0时使用索引的主分片数
+     * @param filePerSlice   是否每个slice单独一个文件
+     * @param progress       进度回调，参数为目前已导出的文档总数，可为null
+     * @return               导出的文档总数
+     * @throws Exception
+     */
+    public long exportToNdjson(String index, Path output, int slices, boolean filePerSlice, LongConsumer progress) throws Exception{
+        return exportToNdjson(index, null, 1000, TimeValue.timeValueMinutes(1), output, slices, filePerSlice, progress);
+    }
+
+    /**
+     * 导出满足条件的文档
+     * @param index          索引库
+     * @param queryBuilder   查询条件，为null时导出全部
+     * @param batchSize      每次scroll拉取的记录数
+     * @param keepAlive      scroll上下文保持时间
+     * @param output         导出文件
+     * @param slices         并行slice数，小于等于0时使用索引的主分片数
+     * @param filePerSlice   是否每个slice单独一个文件
+     * @param progress       进度回调，可为null
+     * @return               导出的文档总数
+     * @throws Exception
+     */
+    public long exportToNdjson(String index, QueryBuilder queryBuilder, int batchSize, TimeValue keepAlive,
+                               Path output, int slices, boolean filePerSlice, LongConsumer progress) throws Exception{
+        int sliceCount = slices > 0 ? slices : primaryShards(index);
+        AtomicLong exported = new AtomicLong();
+        AtomicBoolean failed = new AtomicBoolean();
+        LongConsumer onProgress = progress == null ? x -> {} : progress;
+
+        FileChannel shared = filePerSlice ? null : open(output);
+        ExecutorService executor = Executors.newFixedThreadPool(sliceCount);
+        try {
+            List<Future<Long>> futures = new ArrayList<>(sliceCount);
+            for (int i = 0; i < sliceCount; i++) {
+                final int slice = i;
+                futures.add(executor.submit(() -> {
+                    FileChannel channel = shared != null ? shared : open(output.resolveSibling(output.getFileName() + "." + slice));
+                    try {
+                        return exportSlice(index, queryBuilder, batchSize, keepAlive, slice, sliceCount,
+                                channel, exported, failed, onProgress);
+                    } catch (Exception e) {
+                        failed.set(true);   //通知其他slice尽快停止
+                        throw e;
+                    } finally {
+                        if (shared == null) {
+                            channel.close();
+                        }
+                    }
+                }));
+            }
+            Exception failure = null;
+            for (Future<Long> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+            if (shared != null) {
+                shared.close();
+            }
+        }
+        logger.info("exported {} documents from [{}] with {} slices", exported.get(), index, sliceCount);
+        return exported.get();
+    }
+
+    private long exportSlice(String index, QueryBuilder queryBuilder, int batchSize, TimeValue keepAlive, int slice, int sliceCount,
+                             FileChannel channel, AtomicLong exported, AtomicBoolean failed, LongConsumer progress) throws IOException{
+        SearchSourceBuilder query = new SearchSourceBuilder()
+                .size(batchSize)
+                .sort("_doc");   //按_doc排序，scroll效率最高
+        if (queryBuilder != null) {
+            query.query(queryBuilder);
+        }
+        if (sliceCount > 1) {
+            query.slice(new SliceBuilder(slice, sliceCount));
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        String scrollId = null;
+        long count = 0;
+        try {
+            SearchResponse response = client.search(new SearchRequest(index).source(query).scroll(keepAlive), requestOptions);
+            scrollId = response.getScrollId();
+            SearchHit[] hits = response.getHits().getHits();
+            while (hits.length > 0 && !failed.get()) {
+                for (SearchHit hit : hits) {
+                    writeLine(hit, buffer, channel);
+                }
+                count += hits.length;
+                progress.accept(exported.addAndGet(hits.length));
+                response = client.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), requestOptions);
+                scrollId = response.getScrollId();
+                hits = response.getHits().getHits();
+            }
+            flush(buffer, channel);
+        } finally {
+            clearScroll(scrollId);
+        }
+        return count;
+    }
+
+    private void writeLine(SearchHit hit, ByteBuffer buffer, FileChannel channel) throws IOException{
+        BytesReference source = hit.getSourceRef();
+        byte[] header = ("{\"_index\":\"" + escape(hit.getIndex()) + "\",\"_id\":\"" + escape(hit.getId()) + "\",\"_source\":")
+                .getBytes(StandardCharsets.UTF_8);
+        int length = header.length + (source == null ? 4 : source.length()) + 1 + NEWLINE.length;
+        if (buffer.remaining() < length) {
+            flush(buffer, channel);
+        }
+        if (buffer.remaining() < length) {
+            //超过缓冲区大小的单条记录直接写入
+            ByteBuffer line = ByteBuffer.allocate(length);
+            put(line, header, source);
+            line.flip();
+            writeFully(line, channel);
+            return;
+        }
+        put(buffer, header, source);
+    }
+
+    private static void put(ByteBuffer buffer, byte[] header, BytesReference source) throws IOException{
+        buffer.put(header);
+        if (source == null) {
+            buffer.put("null".getBytes(StandardCharsets.UTF_8));
+        } else {
+            BytesRefIterator iterator = source.iterator();
+            BytesRef ref;
+            while ((ref = iterator.next()) != null) {
+                buffer.put(ref.bytes, ref.offset, ref.length);
+            }
+        }
+        buffer.put((byte) '}');
+        buffer.put(NEWLINE);
+    }
+
+    /**
+     * 只在整行边界写入，多个slice共用一个文件时FileChannel.write保证单次写入不会交错
+     */
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException{
+        buffer.flip();
+        writeFully(buffer, channel);
+        buffer.clear();
+    }
+
+    private static void writeFully(ByteBuffer buffer, FileChannel channel) throws IOException{
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void clearScroll(String scrollId){
+        if (scrollId == null) {
+            return;
+        }
+        ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+        clearScrollRequest.addScrollId(scrollId);
+        try {
+            client.clearScroll(clearScrollRequest, requestOptions);
+        } catch (Exception e) {
+            logger.warn("failed to clear scroll [{}]", scrollId, e);
+        }
+    }
+
+    private int primaryShards(String index) throws IOException{
+        GetSettingsRequest request = new GetSettingsRequest().indices(index).names("index.number_of_shards");
+        GetSettingsResponse response = client.indices().getSettings(request, requestOptions);
+        int shards = 1;
+        Iterator<Settings> settings = response.getIndexToSettings().valuesIt();
+        while (settings.hasNext()) {
+            shards = Math.max(shards, settings.next().getAsInt("index.number_of_shards", 1));
+        }
+        return shards;
+    }
+
+    private static FileChannel open(Path path) throws IOException{
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    static String escape(String value){
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.action.search.SearchRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/shard-request-cache.html
+ * 分面统计：size=0并显式开启shard request cache，相同的分面查询在分片上直接返回缓存的聚合结果
+ * 客户端另有一层短TTL缓存，key为索引库+规范化的查询内容，并发的相同查询只发送一次
+ */
+@Component
+public class ESFacetService {
+
+    @Autowired
+    private HedgedReads reads;
+
+    @Autowired
+    private TimeSeriesIndices timeSeries;
+
+    @Autowired
+    private ESMetrics metrics;
+
+    @Autowired
+    private AdaptiveLimiter limiter;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${es.facet.cache.enabled:true}")
+    private boolean cacheEnabled;
+    @Value("${es.facet.cache.max-size:1000}")
+    private int maxSize;
+    @Value("${es.facet.cache.ttl-ms:5000}")
+    private long ttlMs;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private Counter hits;
+    private Counter misses;
+
+
+    @PostConstruct
+    public void bindMetrics(){
+        hits = Counter.builder("es.facet.cache").tag("result", "hit").register(registry);
+        misses = Counter.builder("es.facet.cache").tag("result", "miss").register(registry);
+        Gauge.builder("es.facet.cache.size", entries, map -> {
+            synchronized (map) {
+                return map.size();
+            }
+        }).register(registry);
+    }
+
+    /**
+     * 分面统计
+     * @param query    分面查询，如FacetQuery.builder(过滤条件).terms("studymodel", "studymodel", 10).range("price", "price", 5, 6).build()
+     * @param indexs   需要统计的索引库（可多个）
+     * @return         各分面的桶
+     * @throws Exception
+     */
+    public Facets facets(FacetQuery query, String ...indexs) throws Exception{
+        try {
+            return facetsAsync(query, indexs).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 异步分面统计，缓存未命中时才发送请求
+     */
+    public CompletableFuture<Facets> facetsAsync(FacetQuery query, String ...indexs){
+        if (!cacheEnabled) {
+            return send(query, indexs);
+        }
+        String[] sorted = indexs.clone();
+        Arrays.sort(sorted);
+        String key = String.join(",", sorted) + "|" + query.key();
+        CompletableFuture<Facets> future;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expireAt > System.currentTimeMillis()) {
+                hits.increment();
+                return entry.future.thenApply(facets -> facets);   //返回副本，调用方取消或完成不影响缓存
+            }
+            misses.increment();
+            future = new CompletableFuture<>();
+            entries.put(key, new Entry(future, System.currentTimeMillis() + ttlMs));
+            evict();
+        }
+        send(query, indexs).whenComplete((facets, e) -> {
+            if (e != null) {
+                synchronized (entries) {
+                    Entry entry = entries.get(key);
+                    if (entry != null && entry.future == future) {
+                        entries.remove(key);   //失败的结果不缓存
+                    }
+                }
+                future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                future.complete(facets);
+            }
+        });
+        return future.thenApply(facets -> facets);
+    }
+
+    /**
+     * 清空客户端缓存，如批量写入后需要立即看到新的统计结果
+     */
+    public void invalidateAll(){
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private CompletableFuture<Facets> send(FacetQuery query, String ...indexs){
+        SearchRequest request = new SearchRequest(indexs)
+                .source(query.source())
+                .requestCache(true);
+        return metrics.recordAsync("facets", ESMetrics.indexTag(indexs),
+                options -> limiter.callAsync(AdaptiveLimiter.Kind.READ, "facets", () -> reads.searchAsync(timeSeries.prune(request), options)))
+                .thenApply(Facets::from);
+    }
+
+    /**
+     * 超过maxSize时淘汰最久未使用的，顺带清理已过期的
+     */
+    private void evict(){
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            if (entries.size() > maxSize || next.getValue().expireAt <= now) {
+                iterator.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static class Entry {
+        private final CompletableFuture<Facets> future;
+        private final long expireAt;
+
+        Entry(CompletableFuture<Facets> future, long expireAt) {
+            this.future = future;
+            this.expireAt = expireAt;
+        }
+    }
+}
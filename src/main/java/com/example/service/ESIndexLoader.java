@@ -0,0 +1,388 @@
+package com.example.service;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeAction;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.GetMappingsResponse;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/indices-aliases.html
+ * 全量重建索引：新建带版本号的索引，导入期间关闭refresh并去掉副本，多个bulk请求并行写入，
+ * 完成后恢复设置、force merge、等待分片可用，最后原子地把别名切换到新索引，读请求全程不受影响
+ * 别名名称当前是一个普通索引时(如最初直接创建的xc_course)，切换时会在同一个请求中删除该索引并建立同名别名
+ */
+@Component
+public class ESIndexLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ESIndexLoader.class);
+
+    private static final DateTimeFormatter VERSION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Value("${es.loader.bulk-actions:5000}")
+    private int bulkActions;
+    @Value("${es.loader.bulk-size-mb:10}")
+    private long bulkSizeMb;
+    @Value("${es.loader.concurrent-requests:4}")
+    private int concurrentRequests;
+    @Value("${es.loader.force-merge-segments:1}")
+    private int forceMergeSegments;
+    @Value("${es.loader.replicas:-1}")
+    private int replicas;
+    @Value("${es.loader.delete-old:false}")
+    private boolean deleteOld;
+    @Value("${es.loader.health-timeout-ms:600000}")
+    private long healthTimeoutMs;
+    @Value("${es.loader.force-merge-timeout-ms:3600000}")
+    private long forceMergeTimeoutMs;
+    @Value("${es.socket-timeout-ms:30000}")
+    private long socketTimeoutMs;
+
+
+    /**
+     * 待导入的文档
+     */
+    public static class Document {
+        private final String id;
+        private final BytesReference json;
+        private final Map<String, Object> map;
+
+        public Document(String id, BytesReference json) {
+            this.id = id;
+            this.json = json;
+            this.map = null;
+        }
+
+        public Document(String id, Map<String, Object> map) {
+            this.id = id;
+            this.json = null;
+            this.map = map;
+        }
+
+        IndexRequest toRequest(String index){
+            IndexRequest request = new IndexRequest(index).id(id);
+            return map != null ? request.source(map) : request.source(json, XContentType.JSON);
+        }
+    }
+
+    /**
+     * 从ESExportService导出的NDJSON文件重建索引
+     * @param alias      别名，读写都通过该名称访问
+     * @param mapping    新索引的mapping，为null时复制别名当前指向的索引的mapping
+     * @param progress   进度回调，参数为已写入的文档数，可为null
+     * @param inputs     导出文件(filePerSlice时为多个)
+     * @return           新索引名称
+     * @throws Exception
+     */
+    public String loadFromNdjson(String alias, Map<String, Object> mapping, LongConsumer progress, Path ...inputs) throws Exception{
+        try (Stream<Document> documents = Arrays.stream(inputs).flatMap(ESIndexLoader::lines).map(ESIndexLoader::parseLine)) {
+            return load(alias, mapping, documents.iterator(), progress);
+        }
+    }
+
+    /**
+     * 重建索引
+     * @param alias      别名，读写都通过该名称访问
+     * @param mapping    新索引的mapping，为null时复制别名当前指向的索引的mapping
+     * @param source     全部文档
+     * @param progress   进度回调，参数为已写入的文档数，可为null
+     * @return           新索引名称
+     * @throws Exception 导入失败时删除新索引，别名保持不变
+     */
+    public String load(String alias, Map<String, Object> mapping, Iterator<Document> source, LongConsumer progress) throws Exception{
+        List<String> current = currentIndices(alias);
+        boolean concrete = current.isEmpty() && client.indices().exists(new GetIndexRequest(alias), requestOptions);
+        String template = concrete ? alias : (current.isEmpty() ? null : current.get(0));
+        String index = alias + "_v" + LocalDateTime.now().format(VERSION_FORMAT);
+
+        Settings original = template == null ? Settings.EMPTY : settings(template);
+        createIndex(index, mapping != null ? mapping : mapping(template), original);
+        try {
+            long loaded = bulkLoad(index, source, progress == null ? x -> {} : progress);
+            logger.info("loaded {} documents into [{}]", loaded, index);
+            restoreSettings(index, original);
+        } catch (Exception e) {
+            logger.error("failed to load [{}], deleting it", index, e);
+            client.indices().delete(new DeleteIndexRequest(index), requestOptions);
+            throw e;
+        }
+        swapAlias(alias, index, current, concrete);
+        return index;
+    }
+
+    /**
+     * 新索引使用原索引的主分片数，导入期间不refresh、没有副本
+     */
+    private void createIndex(String index, Map<String, Object> mapping, Settings original) throws IOException{
+        Settings.Builder settings = Settings.builder()
+                .put("index.refresh_interval", "-1")
+                .put("index.number_of_replicas", 0);
+        String shards = original.get("index.number_of_shards");
+        if (shards != null) {
+            settings.put("index.number_of_shards", shards);
+        }
+        CreateIndexRequest request = new CreateIndexRequest(index).settings(settings);
+        if (mapping != null) {
+            request.mapping(mapping);
+        }
+        client.indices().create(request, requestOptions);
+    }
+
+    private long bulkLoad(String index, Iterator<Document> source, LongConsumer progress) throws Exception{
+        AtomicLong loaded = new AtomicLong();
+        AtomicReference<String> failure = new AtomicReference<>();
+        BulkProcessor.Listener listener = new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                long succeeded = 0;
+                for (BulkItemResponse item : response.getItems()) {
+                    if (!item.isFailed()) {
+                        succeeded++;
+                    }
+                }
+                if (response.hasFailures()) {
+                    failure.compareAndSet(null, response.buildFailureMessage());
+                }
+                progress.accept(loaded.addAndGet(succeeded));
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable e) {
+                failure.compareAndSet(null, e.toString());
+            }
+        };
+        BulkProcessor processor = BulkProcessor.builder(
+                (request, bulkListener) -> client.bulkAsync(request, requestOptions, bulkListener), listener)
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setConcurrentRequests(concurrentRequests)   //并行的bulk请求数，都在执行时add会阻塞，读取速度不会超过写入速度
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), 8))
+                .build();
+        try {
+            while (source.hasNext() && failure.get() == null) {
+                processor.add(source.next().toRequest(index));
+            }
+        } finally {
+            processor.awaitClose(10, TimeUnit.MINUTES);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("bulk load into [" + index + "] failed: " + failure.get());
+        }
+        return loaded.get();
+    }
+
+    /**
+     * 恢复refresh和副本，force merge后等待分片可用
+     * 在恢复副本前force merge，副本直接复制合并后的段
+     */
+    private void restoreSettings(String index, Settings original) throws IOException, InterruptedException{
+        client.indices().refresh(new RefreshRequest(index), requestOptions);
+        if (forceMergeSegments > 0) {
+            forceMerge(index);
+        }
+        Settings.Builder settings = Settings.builder();
+        String refreshInterval = original.get("index.refresh_interval");
+        if (refreshInterval != null) {
+            settings.put("index.refresh_interval", refreshInterval);
+        } else {
+            settings.putNull("index.refresh_interval");   //恢复默认值
+        }
+        settings.put("index.number_of_replicas", replicas >= 0 ? replicas : original.getAsInt("index.number_of_replicas", 1));
+        client.indices().putSettings(new UpdateSettingsRequest(index).settings(settings), requestOptions);
+        waitForGreen(index);
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/indices-forcemerge.html
+     * 7.5的force merge不支持wait_for_completion=false，RequestOptions也不能按请求设置socket超时，
+     * 合并超过es.socket-timeout-ms时客户端超时而服务端继续执行，之后通过Tasks API等待合并结束，
+     * 超过es.loader.force-merge-timeout-ms仍未结束时继续切换
+     */
+    private void forceMerge(String index) throws IOException, InterruptedException{
+        try {
+            client.indices().forcemerge(new ForceMergeRequest(index).maxNumSegments(forceMergeSegments), requestOptions);
+            return;
+        } catch (SocketTimeoutException e) {
+            logger.info("force merge of [{}] is still running, waiting for it", index);
+        }
+        long deadline = System.currentTimeMillis() + forceMergeTimeoutMs;
+        ListTasksRequest request = new ListTasksRequest().setActions(ForceMergeAction.NAME + "*");
+        while (!client.tasks().list(request, requestOptions).getTasks().isEmpty()) {
+            if (System.currentTimeMillis() >= deadline) {
+                logger.warn("force merge of [{}] is still running after {}ms, continuing", index, forceMergeTimeoutMs);
+                return;
+            }
+            TimeUnit.SECONDS.sleep(5);
+        }
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/cluster-health.html
+     * 等待新索引变为green，超过es.loader.health-timeout-ms时导入失败
+     * 每次请求的服务端等待时间不超过es.socket-timeout-ms的一半，客户端不会先于服务端超时
+     */
+    private void waitForGreen(String index) throws IOException{
+        long deadline = System.currentTimeMillis() + healthTimeoutMs;
+        long step = Math.max(socketTimeoutMs / 2, 1000);
+        while (true) {
+            long remaining = Math.max(deadline - System.currentTimeMillis(), 0);
+            ClusterHealthResponse response = client.cluster().health(new ClusterHealthRequest(index)
+                    .waitForGreenStatus()
+                    .timeout(TimeValue.timeValueMillis(Math.min(remaining, step))), requestOptions);
+            if (!response.isTimedOut()) {
+                return;
+            }
+            if (remaining <= step) {
+                throw new ElasticsearchTimeoutException("index [{}] is still {} after {}ms", index, response.getStatus(), healthTimeoutMs);
+            }
+        }
+    }
+
+    /**
+     * 一个请求内完成别名的切换，读请求不会看到中间状态
+     */
+    private void swapAlias(String alias, String index, List<String> current, boolean concrete) throws IOException{
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        if (concrete) {
+            request.addAliasAction(AliasActions.removeIndex().index(alias));
+        }
+        for (String old : current) {
+            request.addAliasAction(AliasActions.remove().index(old).alias(alias));
+        }
+        request.addAliasAction(AliasActions.add().index(index).alias(alias));
+        client.indices().updateAliases(request, requestOptions);
+        logger.info("alias [{}] now points to [{}], previous {}", alias, index, concrete ? "[" + alias + "] (deleted)" : current);
+        if (deleteOld && !current.isEmpty()) {
+            client.indices().delete(new DeleteIndexRequest(current.toArray(new String[0])), requestOptions);
+        }
+    }
+
+    private List<String> currentIndices(String alias) throws IOException{
+        GetAliasesResponse response = client.indices().getAlias(new GetAliasesRequest(alias), requestOptions);
+        if (response.status() == RestStatus.NOT_FOUND) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(response.getAliases().keySet());
+    }
+
+    private Settings settings(String index) throws IOException{
+        GetSettingsRequest request = new GetSettingsRequest().indices(index)
+                .names("index.number_of_shards", "index.number_of_replicas", "index.refresh_interval");
+        GetSettingsResponse response = client.indices().getSettings(request, requestOptions);
+        Settings settings = response.getIndexToSettings().get(index);
+        return settings == null ? Settings.EMPTY : settings;
+    }
+
+    private Map<String, Object> mapping(String index) throws IOException{
+        if (index == null) {
+            return null;
+        }
+        GetMappingsResponse response = client.indices().getMapping(new GetMappingsRequest().indices(index), requestOptions);
+        MappingMetaData mapping = response.mappings().get(index);
+        return mapping == null ? null : mapping.sourceAsMap();
+    }
+
+    private static Stream<String> lines(Path path){
+        try {
+            return Files.lines(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 解析ESExportService导出的一行：{"_index":"...","_id":"...","_source":{...}}
+     */
+    private static Document parseLine(String line){
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                LoggingDeprecationHandler.INSTANCE, line)) {
+            String id = null;
+            BytesReference source = null;
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("_id".equals(field)) {
+                    id = parser.text();
+                } else if ("_source".equals(field)) {
+                    XContentBuilder builder = XContentFactory.jsonBuilder().copyCurrentStructure(parser);
+                    source = BytesReference.bytes(builder);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new Document(id, source == null ? new BytesArray("{}") : source);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
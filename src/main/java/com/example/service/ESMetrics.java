@@ -0,0 +1,240 @@
+package com.example.service;
+
+import com.example.config.TrafficRecorder;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * ESDocumentService的调用指标，通过actuator的/actuator/metrics暴露
+ * es.client.requests           客户端耗时(含排队、网络、解析)，按method、index、outcome区分，count即吞吐量
+ * es.server.took               服务端返回的took
+ * es.client.response.size      响应字节数(压缩时为压缩后大小)
+ */
+@Component
+public class ESMetrics {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private TrafficRecorder trafficRecorder;
+
+    private final ConcurrentMap<String, Meters> meters = new ConcurrentHashMap<>();
+
+
+    /**
+     * 需要计量的同步调用，使用传入的RequestOptions才能统计响应字节数
+     */
+    public interface ESCall<T> {
+        T call(RequestOptions options) throws Exception;
+    }
+
+    @PostConstruct
+    public void bindCacheMetrics(){
+        FunctionCounter.builder("es.cache.hits", documentCache, DocumentCache::getHitCount).register(registry);
+        FunctionCounter.builder("es.cache.misses", documentCache, DocumentCache::getMissCount).register(registry);
+        FunctionCounter.builder("es.cache.evictions", documentCache, DocumentCache::getEvictionCount).register(registry);
+        FunctionCounter.builder("es.cache.invalidations", documentCache, DocumentCache::getInvalidationCount).register(registry);
+        Gauge.builder("es.cache.size", documentCache, DocumentCache::size).register(registry);
+    }
+
+    /**
+     * 计量一次同步调用
+     * @param method   方法名
+     * @param index    索引库，多个时用indexTag合并
+     * @param call     调用
+     * @return         调用结果
+     * @throws Exception
+     */
+    public <T> T record(String method, String index, ESCall<T> call) throws Exception{
+        Meters meters = meters(method, index);
+        long start = System.nanoTime();
+        try {
+            T result = call.call(meters.options);
+            meters.success.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            recordTook(meters, result);
+            return result;
+        } catch (Exception e) {
+            meters.error.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
+
+    /**
+     * 计量一次异步调用，返回call产生的future本身
+     */
+    public <T> CompletableFuture<T> recordAsync(String method, String index, Function<RequestOptions, CompletableFuture<T>> call){
+        Meters meters = meters(method, index);
+        long start = System.nanoTime();
+        CompletableFuture<T> future = call.apply(meters.options);
+        future.whenComplete((result, e) -> {
+            if (e == null) {
+                meters.success.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                recordTook(meters, result);
+            } else {
+                meters.error.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 多个索引库合并为一个tag
+     */
+    public static String indexTag(String ...indexs){
+        return indexs == null || indexs.length == 0 ? "_all" : String.join(",", indexs);
+    }
+
+    private void recordTook(Meters meters, Object result){
+        TimeValue took = null;
+        if (result instanceof SearchResponse) {
+            took = ((SearchResponse) result).getTook();
+        } else if (result instanceof MultiSearchResponse) {
+            took = ((MultiSearchResponse) result).getTook();
+        } else if (result instanceof BulkResponse) {
+            took = ((BulkResponse) result).getTook();
+        } else if (result instanceof BulkByScrollResponse) {
+            took = ((BulkByScrollResponse) result).getTook();
+        }
+        if (took != null) {
+            meters.took.record(took.millis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Meters meters(String method, String index){
+        return meters.computeIfAbsent(method + "|" + index, k -> new Meters(method, index));
+    }
+
+    private class Meters {
+        private final Timer success;
+        private final Timer error;
+        private final Timer took;
+        private final DistributionSummary size;
+        private final RequestOptions options;
+
+        Meters(String method, String index) {
+            success = Timer.builder("es.client.requests").tags("method", method, "index", index, "outcome", "success")
+                    .publishPercentileHistogram().register(registry);
+            error = Timer.builder("es.client.requests").tags("method", method, "index", index, "outcome", "error")
+                    .publishPercentileHistogram().register(registry);
+            took = Timer.builder("es.server.took").tags("method", method, "index", index)
+                    .publishPercentileHistogram().register(registry);
+            size = DistributionSummary.builder("es.client.response.size").baseUnit("bytes").tags("method", method, "index", index)
+                    .publishPercentileHistogram().register(registry);
+            HttpAsyncResponseConsumerFactory factory = requestOptions.getHttpAsyncResponseConsumerFactory();
+            RequestOptions.Builder builder = requestOptions.toBuilder();
+            builder.setHttpAsyncResponseConsumerFactory(() -> new SizeRecordingConsumer(factory.createHttpAsyncResponseConsumer(), size));
+            if (trafficRecorder.isEnabled()) {
+                builder.addHeader(TrafficRecorder.OPERATION_HEADER, method);   //录制时按方法名区分操作
+            }
+            options = builder.build();
+        }
+    }
+
+    /**
+     * 统计从连接读取的响应体字节数(chunked、gzip响应没有Content-Length)，响应结束时记录，其余逻辑交给原consumer
+     */
+    private static class SizeRecordingConsumer implements HttpAsyncResponseConsumer<HttpResponse> {
+        private final HttpAsyncResponseConsumer<HttpResponse> delegate;
+        private final DistributionSummary size;
+        private long bytes;
+
+        SizeRecordingConsumer(HttpAsyncResponseConsumer<HttpResponse> delegate, DistributionSummary size) {
+            this.delegate = delegate;
+            this.size = size;
+        }
+
+        @Override
+        public void responseReceived(HttpResponse response) throws IOException, HttpException {
+            delegate.responseReceived(response);
+        }
+
+        @Override
+        public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            delegate.consumeContent(new ContentDecoder() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int read = decoder.read(dst);
+                    if (read > 0) {
+                        bytes += read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public boolean isCompleted() {
+                    return decoder.isCompleted();
+                }
+            }, ioctrl);
+        }
+
+        @Override
+        public void responseCompleted(HttpContext context) {
+            size.record(bytes);
+            delegate.responseCompleted(context);
+        }
+
+        @Override
+        public void failed(Exception ex) {
+            delegate.failed(ex);
+        }
+
+        @Override
+        public Exception getException() {
+            return delegate.getException();
+        }
+
+        @Override
+        public HttpResponse getResult() {
+            return delegate.getResult();
+        }
+
+        @Override
+        public boolean isDone() {
+            return delegate.isDone();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean cancel() {
+            return delegate.cancel();
+        }
+    }
+}
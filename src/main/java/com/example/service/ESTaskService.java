@@ -0,0 +1,173 @@
+package com.example.service;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.cluster.node.tasks.cancel.CancelTasksRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.RethrottleRequest;
+import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.tasks.TaskId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/tasks.html
+ * 以任务方式(wait_for_completion=false)提交delete by query，定时通过Tasks API查询进度和结果
+ * 提交、调整限速和取消使用RestHighLevelClient(submitDeleteByQueryTask、deleteByQueryRethrottle、tasks().cancel)；
+ * 查询任务时7.5的tasks().get只解析completed和task，丢弃了完成后保存的response和error，这里用低级客户端读取GET _tasks/<id>的完整响应
+ */
+@Component
+public class ESTaskService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ESTaskService.class);
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Value("${es.task.poll-interval-ms:1000}")
+    private long pollIntervalMs;
+    @Value("${es.task.max-poll-errors:5}")
+    private int maxPollErrors;
+
+    private ScheduledExecutorService scheduler;
+
+
+    @PostConstruct
+    public void init(){
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-task-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void close(){
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-delete-by-query.html
+     * 提交delete by query任务，立即返回，请求中的slices、requests_per_second、conflicts等参数都会保留
+     * @param request   delete by query请求
+     * @param options   请求选项
+     * @return          任务句柄
+     * @throws IOException
+     */
+    public DeleteByQueryTask submitDeleteByQuery(DeleteByQueryRequest request, RequestOptions options) throws IOException {
+        TaskSubmissionResponse response = client.submitDeleteByQueryTask(request, options);
+        DeleteByQueryTask task = new DeleteByQueryTask(response.getTask(), this);
+        schedulePoll(task, 0);
+        return task;
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-rethrottle.html
+     */
+    void rethrottle(String taskId, float requestsPerSecond) throws IOException {
+        RethrottleRequest request = requestsPerSecond > 0
+                ? new RethrottleRequest(new TaskId(taskId), requestsPerSecond)
+                : new RethrottleRequest(new TaskId(taskId));   //不限速
+        client.deleteByQueryRethrottle(request, requestOptions).rethrowFailures("rethrottle");
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-cluster-cancel-tasks.html
+     */
+    void cancel(String taskId) throws IOException {
+        CancelTasksRequest request = new CancelTasksRequest();
+        request.setTaskId(new TaskId(taskId));
+        client.tasks().cancel(request, requestOptions).rethrowFailures("cancel");
+    }
+
+    private void schedulePoll(DeleteByQueryTask task, int errors){
+        scheduler.schedule(() -> poll(task, errors), pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void poll(DeleteByQueryTask task, int errors){
+        if (task.isDone()) {
+            return;
+        }
+        try {
+            Map<String, Object> response = getTask(task.getTaskId());
+            Map<String, Object> info = (Map<String, Object>) response.get("task");
+            if (info != null) {
+                task.update((Map<String, Object>) info.get("status"));
+            }
+            if (!Boolean.TRUE.equals(response.get("completed"))) {
+                schedulePoll(task, 0);
+                return;
+            }
+            Object error = response.get("error");
+            if (error != null) {
+                task.getResult().completeExceptionally(new ElasticsearchException("task [{}] failed: {}", task.getTaskId(), error));
+            } else {
+                task.getResult().complete(parseResponse((Map<String, Object>) response.get("response")));
+            }
+        } catch (Exception e) {
+            //404为任务不存在(如节点重启且结果未保存)，不再重试
+            boolean missing = e instanceof ResponseException
+                    && ((ResponseException) e).getResponse().getStatusLine().getStatusCode() == 404;
+            if (missing || errors + 1 >= maxPollErrors) {
+                task.getResult().completeExceptionally(e);
+            } else {
+                logger.warn("failed to poll task [{}], retrying", task.getTaskId(), e);
+                schedulePoll(task, errors + 1);
+            }
+        }
+    }
+
+    /**
+     * 任务结果中的response与同步delete by query的响应格式相同
+     */
+    private static BulkByScrollResponse parseResponse(Map<String, Object> response) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder().map(response);
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                LoggingDeprecationHandler.INSTANCE, BytesReference.bytes(builder), XContentType.JSON)) {
+            return BulkByScrollResponse.fromXContent(parser);
+        }
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/tasks.html#_current_tasks_information
+     * 任务id格式为node:id，路径中需要编码
+     */
+    private Map<String, Object> getTask(String taskId) throws IOException {
+        Request request = new Request("GET", "/_tasks/" + URLEncoder.encode(taskId, "UTF-8"));
+        request.setOptions(requestOptions);
+        Response response = client.getLowLevelClient().performRequest(request);
+        try (InputStream content = response.getEntity().getContent()) {
+            return XContentHelper.convertToMap(XContentType.JSON.xContent(), content, false);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.service;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.range.RangeAggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-aggregations-bucket.html
+ * 分面统计的查询：在过滤条件上附加terms、range、histogram聚合，只返回聚合结果(size=0)
+ * 聚合按名称排序后生成查询，相同的条件总是生成相同的查询内容，用作缓存的key
+ * 构建后不可修改，可作为常量复用
+ */
+public class FacetQuery {
+
+    private final SearchSourceBuilder source;
+    private final String key;
+
+    private FacetQuery(Builder builder) {
+        this.source = new SearchSourceBuilder()
+                .query(builder.query)
+                .size(0)                 //只需要聚合结果，size=0的请求才会使用shard request cache
+                .trackTotalHits(true);
+        builder.aggregations.values().forEach(source::aggregation);   //TreeMap，按名称排序
+        this.key = source.toString();
+    }
+
+    public static Builder builder(QueryBuilder query){
+        return new Builder(query);
+    }
+
+    /**
+     * 查询条件，调用方不要修改
+     */
+    public SearchSourceBuilder source(){
+        return source;
+    }
+
+    /**
+     * 规范化的查询内容
+     */
+    public String key(){
+        return key;
+    }
+
+    public static class Builder {
+        private final QueryBuilder query;
+        private final Map<String, AggregationBuilder> aggregations = new TreeMap<>();
+
+        private Builder(QueryBuilder query) {
+            this.query = query == null ? QueryBuilders.matchAllQuery() : query;
+        }
+
+        /**
+         * 按字段值统计个数，如每个studymodel的课程数
+         * @param name   分面名称
+         * @param field  keyword或数值字段
+         * @param size   返回个数最多的前size个值
+         */
+        public Builder terms(String name, String field, int size){
+            aggregations.put(name, AggregationBuilders.terms(name).field(field).size(size));
+            return this;
+        }
+
+        /**
+         * 按区间统计个数，区间为[edges[i], edges[i+1])，并包含首尾两端的开区间
+         * @param name   分面名称
+         * @param field  数值字段
+         * @param edges  升序的区间边界，如价格0,5,10,50
+         */
+        public Builder range(String name, String field, double ...edges){
+            RangeAggregationBuilder range = AggregationBuilders.range(name).field(field);
+            if (edges.length > 0) {
+                range.addUnboundedTo(edges[0]);
+                for (int i = 0; i + 1 < edges.length; i++) {
+                    range.addRange(edges[i], edges[i + 1]);
+                }
+                range.addUnboundedFrom(edges[edges.length - 1]);
+            }
+            aggregations.put(name, range);
+            return this;
+        }
+
+        /**
+         * 按固定间隔统计个数，不返回没有文档的区间
+         * @param name      分面名称
+         * @param field     数值字段
+         * @param interval  间隔
+         */
+        public Builder histogram(String name, String field, double interval){
+            aggregations.put(name, AggregationBuilders.histogram(name).field(field).interval(interval).minDocCount(1));
+            return this;
+        }
+
+        public FacetQuery build(){
+            return new FacetQuery(this);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.service;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分面统计结果，只保留每个桶的key和文档数，不持有SearchResponse，可以直接缓存
+ */
+public class Facets {
+
+    private final long total;
+    private final long took;
+    private final Map<String, List<Bucket>> facets;
+
+    private Facets(long total, long took, Map<String, List<Bucket>> facets) {
+        this.total = total;
+        this.took = took;
+        this.facets = Collections.unmodifiableMap(facets);
+    }
+
+    static Facets from(SearchResponse response){
+        Map<String, List<Bucket>> facets = new LinkedHashMap<>();
+        if (response.getAggregations() != null) {
+            for (Aggregation aggregation : response.getAggregations()) {
+                if (!(aggregation instanceof MultiBucketsAggregation)) {
+                    continue;
+                }
+                List<? extends MultiBucketsAggregation.Bucket> buckets = ((MultiBucketsAggregation) aggregation).getBuckets();
+                List<Bucket> result = new ArrayList<>(buckets.size());
+                for (MultiBucketsAggregation.Bucket bucket : buckets) {
+                    result.add(new Bucket(bucket.getKeyAsString(), bucket.getDocCount()));
+                }
+                facets.put(aggregation.getName(), Collections.unmodifiableList(result));
+            }
+        }
+        long total = response.getHits().getTotalHits() == null ? -1 : response.getHits().getTotalHits().value;
+        return new Facets(total, response.getTook().millis(), facets);
+    }
+
+    /**
+     * 满足过滤条件的文档总数
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * 服务端耗时(毫秒)，缓存命中时为首次查询的耗时
+     */
+    public long getTook() {
+        return took;
+    }
+
+    /**
+     * @param name  分面名称
+     * @return      该分面的桶，不存在时为空列表
+     */
+    public List<Bucket> get(String name){
+        return facets.getOrDefault(name, Collections.emptyList());
+    }
+
+    public Map<String, List<Bucket>> asMap(){
+        return facets;
+    }
+
+    @Override
+    public String toString() {
+        return "Facets{total=" + total + ", facets=" + facets + '}';
+    }
+
+    public static class Bucket {
+        private final String key;
+        private final long docCount;
+
+        Bucket(String key, long docCount) {
+            this.key = key;
+            this.docCount = docCount;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getDocCount() {
+            return docCount;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + docCount;
+        }
+    }
+}
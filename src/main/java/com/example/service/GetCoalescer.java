@@ -0,0 +1,172 @@
+package com.example.service;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-document-multi-get.html
+ * 将并发的单文档读取合并为一次_mget：收集一个时间窗口内或达到最大批量的读取请求，统一发送后再分发到各自的future
+ * 同一批次中相同的index/id只请求一次
+ */
+@Component
+public class GetCoalescer {
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Value("${es.coalesce.enabled:false}")
+    private boolean enabled;
+    @Value("${es.coalesce.window-ms:2}")
+    private long windowMs;
+    @Value("${es.coalesce.max-batch:100}")
+    private int maxBatch;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-get-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 当前正在收集的批次，下标0为不返回source的读取，下标1为返回source的读取
+     */
+    private final Batch[] pending = new Batch[2];
+
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 提交一次单文档读取
+     * @param index         索引库
+     * @param id            文档id
+     * @param fetchSource   是否返回_source
+     * @return              读取结果
+     */
+    public CompletableFuture<GetResponse> get(String index, String id, boolean fetchSource){
+        CompletableFuture<GetResponse> future = new CompletableFuture<>();
+        int slot = fetchSource ? 1 : 0;
+        Batch full = null;
+        synchronized (pending) {
+            Batch batch = pending[slot];
+            if (batch == null) {
+                batch = new Batch(fetchSource);
+                pending[slot] = batch;
+                final Batch scheduled = batch;
+                scheduler.schedule(() -> flush(slot, scheduled), windowMs, TimeUnit.MILLISECONDS);
+            }
+            batch.add(index, id, future);
+            if (batch.size() >= maxBatch) {
+                pending[slot] = null;
+                full = batch;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return future;
+    }
+
+    @PreDestroy
+    public void close(){
+        scheduler.shutdownNow();
+    }
+
+    private void flush(int slot, Batch batch){
+        synchronized (pending) {
+            if (pending[slot] != batch) {
+                return;   //已因达到最大批量被发送
+            }
+            pending[slot] = null;
+        }
+        send(batch);
+    }
+
+    private void send(Batch batch){
+        MultiGetRequest request = new MultiGetRequest();
+        FetchSourceContext fetchSourceContext = batch.fetchSource ? FetchSourceContext.FETCH_SOURCE : FetchSourceContext.DO_NOT_FETCH_SOURCE;
+        List<List<CompletableFuture<GetResponse>>> futures = new ArrayList<>(batch.items.size());
+        for (Item item : batch.items.values()) {
+            MultiGetRequest.Item getItem = new MultiGetRequest.Item(item.index, item.id).fetchSourceContext(fetchSourceContext);
+            if (!batch.fetchSource) {
+                getItem.storedFields("_none_");   //只判断是否存在
+            }
+            request.add(getItem);
+            futures.add(item.futures);
+        }
+        client.mgetAsync(request, requestOptions, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse multiGetResponse) {
+                MultiGetItemResponse[] responses = multiGetResponse.getResponses();
+                for (int i = 0; i < futures.size(); i++) {
+                    MultiGetItemResponse response = responses[i];
+                    for (CompletableFuture<GetResponse> future : futures.get(i)) {
+                        if (response.isFailed()) {
+                            future.completeExceptionally(response.getFailure().getFailure());
+                        } else {
+                            future.complete(response.getResponse());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                for (List<CompletableFuture<GetResponse>> list : futures) {
+                    list.forEach(future -> future.completeExceptionally(e));
+                }
+            }
+        });
+    }
+
+    private static class Batch {
+        private final boolean fetchSource;
+        private final Map<String, Item> items = new LinkedHashMap<>();
+
+        Batch(boolean fetchSource) {
+            this.fetchSource = fetchSource;
+        }
+
+        void add(String index, String id, CompletableFuture<GetResponse> future){
+            items.computeIfAbsent(index + "/" + id, k -> new Item(index, id)).futures.add(future);
+        }
+
+        int size(){
+            return items.size();
+        }
+    }
+
+    private static class Item {
+        private final String index;
+        private final String id;
+        private final List<CompletableFuture<GetResponse>> futures = new ArrayList<>(1);
+
+        Item(String index, String id) {
+            this.index = index;
+            this.id = id;
+        }
+    }
+}
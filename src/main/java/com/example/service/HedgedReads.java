@@ -0,0 +1,338 @@
+package com.example.service;
+
+import com.example.config.LatencyAwareNodeSelector;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Cancellable;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * 幂等读请求(get、exists、search)的发送：
+ * es.hedge.enabled      首次请求超过该操作(get、exists、search分别统计)最近耗时的es.hedge.percentile分位仍未返回时，向另一个节点再发一次，先返回的结果生效
+ * es.routing.preference 为query时按查询内容设置preference，相同查询固定到相同的分片副本，命中其缓存；
+ *                       为id时get/exists按文档id设置preference
+ */
+@Component
+public class HedgedReads {
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private LatencyAwareNodeSelector nodeSelector;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${es.hedge.enabled:false}")
+    private boolean enabled;
+    @Value("${es.hedge.percentile:95}")
+    private double percentile;
+    @Value("${es.hedge.min-delay-ms:5}")
+    private long minDelayMs;
+    @Value("${es.hedge.min-samples:100}")
+    private int minSamples;
+    @Value("${es.routing.preference:none}")
+    private String preference;
+
+    //get、exists和search的耗时相差很大，分别统计，各自计算对冲的等待时间
+    private final LatencyWindow searchLatencies = new LatencyWindow(1024);
+    private final LatencyWindow getLatencies = new LatencyWindow(1024);
+    private final LatencyWindow existsLatencies = new LatencyWindow(1024);
+
+    private ScheduledExecutorService scheduler;
+
+    private Counter hedgesSent;
+    private Counter hedgesWon;
+
+
+    @PostConstruct
+    public void init(){
+        hedgesSent = Counter.builder("es.client.hedges").tag("outcome", "sent").register(registry);
+        hedgesWon = Counter.builder("es.client.hedges").tag("outcome", "won").register(registry);
+        if (enabled) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "es-hedge");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void close(){
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public SearchResponse search(SearchRequest request, RequestOptions options) throws Exception{
+        prefer(request);
+        if (!enabled) {
+            return client.search(request, options);
+        }
+        return await(hedge(searchLatencies, l -> client.searchAsync(request, options, l)));
+    }
+
+    public CompletableFuture<SearchResponse> searchAsync(SearchRequest request, RequestOptions options){
+        prefer(request);
+        return hedge(searchLatencies, l -> client.searchAsync(request, options, l));
+    }
+
+    /**
+     * 按SearchShape裁剪响应后查询，7.5的RestHighLevelClient不能附加filter_path，这里使用低级客户端发送并解析
+     */
+    public SearchResponse search(SearchRequest request, SearchShape shape, RequestOptions options) throws Exception{
+        return await(searchAsync(request, shape, options));
+    }
+
+    public CompletableFuture<SearchResponse> searchAsync(SearchRequest request, SearchShape shape, RequestOptions options){
+        prefer(request);
+        Request lowLevelRequest;
+        try {
+            lowLevelRequest = shapedRequest(request, shape, options);
+        } catch (IOException e) {
+            CompletableFuture<SearchResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return hedge(searchLatencies, l -> client.getLowLevelClient().performRequestAsync(lowLevelRequest, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try (InputStream content = response.getEntity().getContent();
+                     XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                             LoggingDeprecationHandler.INSTANCE, content)) {
+                    l.onResponse(SearchResponse.fromXContent(parser));
+                } catch (Exception e) {
+                    l.onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                l.onFailure(e);
+            }
+        }));
+    }
+
+    private static Request shapedRequest(SearchRequest request, SearchShape shape, RequestOptions options) throws IOException {
+        Request lowLevelRequest = SearchRequests.toLowLevel(request);
+        String filterPath = shape.filterPathParam();
+        if (filterPath != null) {
+            lowLevelRequest.addParameter("filter_path", filterPath);
+        }
+        BytesReference body = XContentHelper.toXContent(shape.apply(request.source()), XContentType.JSON, false);
+        lowLevelRequest.setEntity(new NByteArrayEntity(BytesReference.toBytes(body), ContentType.APPLICATION_JSON));
+        boolean gzipped = options.getHeaders().stream().anyMatch(header -> HttpHeaders.ACCEPT_ENCODING.equalsIgnoreCase(header.getName()));
+        lowLevelRequest.setOptions(shape.isGzip() && !gzipped ? options.toBuilder().addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip").build() : options);
+        return lowLevelRequest;
+    }
+
+    public GetResponse get(GetRequest request, RequestOptions options) throws Exception{
+        prefer(request);
+        if (!enabled) {
+            return client.get(request, options);
+        }
+        return await(hedge(getLatencies, l -> client.getAsync(request, options, l)));
+    }
+
+    public CompletableFuture<GetResponse> getAsync(GetRequest request, RequestOptions options){
+        prefer(request);
+        return hedge(getLatencies, l -> client.getAsync(request, options, l));
+    }
+
+    public boolean exists(GetRequest request, RequestOptions options) throws Exception{
+        prefer(request);
+        if (!enabled) {
+            return client.exists(request, options);
+        }
+        return await(hedge(existsLatencies, l -> client.existsAsync(request, options, l)));
+    }
+
+    public CompletableFuture<Boolean> existsAsync(GetRequest request, RequestOptions options){
+        prefer(request);
+        return hedge(existsLatencies, l -> client.existsAsync(request, options, l));
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-request-body.html#request-body-search-preference
+     * 自定义preference不能以_开头，这里使用哈希值
+     */
+    private void prefer(SearchRequest request){
+        if ("query".equals(preference) && request.preference() == null && request.source() != null) {
+            request.preference(Integer.toHexString(31 * Arrays.hashCode(request.indices()) + request.source().hashCode()));
+        }
+    }
+
+    private void prefer(GetRequest request){
+        if (("id".equals(preference) || "query".equals(preference)) && request.preference() == null) {
+            request.preference(Integer.toHexString((request.index() + "/" + request.id()).hashCode()));
+        }
+    }
+
+    /**
+     * 发送请求，未开启hedge时直接发送；开启时超过阈值未返回则向另一个节点再发送一次
+     * 一个请求失败时等待另一个请求的结果，都失败时返回最后一个异常；先返回的结果生效后取消另一个请求
+     * @param latencies   该操作最近的耗时，用于计算再次发送前的等待时间
+     */
+    private <T> CompletableFuture<T> hedge(LatencyWindow latencies, Function<ActionListener<T>, Cancellable> send){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReferenceArray<Cancellable> sent = new AtomicReferenceArray<>(2);
+        if (!enabled) {
+            sent.set(0, send.apply(ActionListener.wrap(result::complete, result::completeExceptionally)));
+            result.whenComplete((r, e) -> cancel(sent));
+            return result;
+        }
+        AtomicInteger pending = new AtomicInteger(1);
+        HttpHost first = nodeSelector.pin(null, () -> sent.set(0, send.apply(listener(latencies, result, pending, false))));
+        long delayNanos = latencies.percentile(percentile, minSamples);
+        if (first == null || delayNanos < 0) {
+            result.whenComplete((r, e) -> cancel(sent));
+            return result;
+        }
+        ScheduledFuture<?> timer = scheduler.schedule(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            pending.incrementAndGet();
+            HttpHost second = nodeSelector.pin(first, () -> sent.set(1, send.apply(listener(latencies, result, pending, true))));
+            if (second == null || second.equals(first)) {
+                pending.decrementAndGet();   //只有一个可用节点，不会真正发出第二个请求
+            } else {
+                hedgesSent.increment();
+            }
+            if (result.isDone()) {
+                cancel(sent);   //发送期间第一个请求已返回
+            }
+        }, Math.max(delayNanos, TimeUnit.MILLISECONDS.toNanos(minDelayMs)), TimeUnit.NANOSECONDS);
+        result.whenComplete((r, e) -> {
+            timer.cancel(false);
+            cancel(sent);
+        });
+        return result;
+    }
+
+    /**
+     * 结果已确定后中止仍未返回的请求：对冲时取消落后的一个，调用方取消时全部取消
+     * 已返回的请求调用cancel没有影响
+     */
+    private static void cancel(AtomicReferenceArray<Cancellable> sent){
+        for (int i = 0; i < sent.length(); i++) {
+            Cancellable cancellable = sent.get(i);
+            if (cancellable != null) {
+                cancellable.cancel();
+            }
+        }
+    }
+
+    private <T> ActionListener<T> listener(LatencyWindow latencies, CompletableFuture<T> result, AtomicInteger pending, boolean hedged){
+        long start = System.nanoTime();
+        return new ActionListener<T>() {
+            @Override
+            public void onResponse(T response) {
+                latencies.record(System.nanoTime() - start);
+                if (result.complete(response) && hedged) {
+                    hedgesWon.increment();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception{
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 最近N次成功请求的耗时，每新增N/16个样本重新计算一次分位数
+     */
+    private static class LatencyWindow {
+        private final long[] samples;
+        private int count;
+        private int next;
+        private int sinceComputed;
+        private double computedPercentile = -1;
+        private long computed = -1;
+
+        LatencyWindow(int size) {
+            samples = new long[size];
+        }
+
+        synchronized void record(long nanos){
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            sinceComputed++;
+        }
+
+        /**
+         * @return  分位数(纳秒)，样本数不足minSamples时返回-1
+         */
+        synchronized long percentile(double percentile, int minSamples){
+            if (count < Math.max(minSamples, 1)) {
+                return -1;
+            }
+            if (computed < 0 || percentile != computedPercentile || sinceComputed >= samples.length / 16) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+                computed = sorted[Math.min(Math.max(rank, 0), count - 1)];
+                computedPercentile = percentile;
+                sinceComputed = 0;
+            }
+            return computed;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.service;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 将_source字节流式解析为对象，代替hit.getSourceAsMap()
+ * 数值字段直接按基本类型读取，没有注册的字段直接跳过，不会生成中间Map和装箱对象
+ * 构建后线程安全，可作为常量复用
+ * @param <T>  结果类型
+ */
+public class HitDecoder<T> {
+
+    /**
+     * 读取单个字段的值，调用时parser已指向该字段的值
+     */
+    public interface FieldReader<T> {
+        void read(T target, XContentParser parser) throws IOException;
+    }
+
+    private final Supplier<T> factory;
+    private final BiConsumer<T, String> idSetter;
+    private final Map<String, FieldReader<T>> readers;
+
+    private HitDecoder(Builder<T> builder) {
+        this.factory = builder.factory;
+        this.idSetter = builder.idSetter;
+        this.readers = new HashMap<>(builder.readers);
+    }
+
+    public static <T> Builder<T> builder(Supplier<T> factory){
+        return new Builder<>(factory);
+    }
+
+    /**
+     * 需要读取的字段，可用于fetchSource只返回这些字段
+     */
+    public String[] fields(){
+        return readers.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * 解析单条记录
+     * @param hit   查询结果中的记录
+     * @return      解析后的对象
+     * @throws IOException
+     */
+    public T decode(SearchHit hit) throws IOException{
+        T target = factory.get();
+        if (idSetter != null) {
+            idSetter.accept(target, hit.getId());
+        }
+        BytesReference source = hit.getSourceRef();
+        if (source == null) {
+            return target;
+        }
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, XContentType.JSON)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new IOException("_source of [" + hit.getId() + "] is not an object");
+            }
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                FieldReader<T> reader = readers.get(parser.currentName());
+                XContentParser.Token token = parser.nextToken();
+                if (reader == null || token == XContentParser.Token.VALUE_NULL) {
+                    parser.skipChildren();   //不需要的字段，对象和数组整体跳过
+                    continue;
+                }
+                reader.read(target, parser);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * 解析查询结果中的所有记录
+     */
+    public List<T> decode(SearchResponse response) throws IOException{
+        SearchHit[] hits = response.getHits().getHits();
+        List<T> results = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            results.add(decode(hit));
+        }
+        return results;
+    }
+
+    public static class Builder<T> {
+        private final Supplier<T> factory;
+        private BiConsumer<T, String> idSetter;
+        private final Map<String, FieldReader<T>> readers = new HashMap<>();
+
+        private Builder(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        /**
+         * 文档id
+         */
+        public Builder<T> id(BiConsumer<T, String> setter){
+            this.idSetter = setter;
+            return this;
+        }
+
+        public Builder<T> stringField(String name, BiConsumer<T, String> setter){
+            return field(name, (target, parser) -> setter.accept(target, parser.text()));
+        }
+
+        public Builder<T> doubleField(String name, ObjDoubleConsumer<T> setter){
+            return field(name, (target, parser) -> setter.accept(target, parser.doubleValue()));
+        }
+
+        public Builder<T> longField(String name, ObjLongConsumer<T> setter){
+            return field(name, (target, parser) -> setter.accept(target, parser.longValue()));
+        }
+
+        public Builder<T> intField(String name, ObjIntConsumer<T> setter){
+            return field(name, (target, parser) -> setter.accept(target, parser.intValue()));
+        }
+
+        /**
+         * 自定义字段读取，对象或数组字段需要自行读取到对应的END token
+         */
+        public Builder<T> field(String name, FieldReader<T> reader){
+            readers.put(name, reader);
+            return this;
+        }
+
+        public HitDecoder<T> build(){
+            return new HitDecoder<>(this);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.service;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-request-body.html#request-body-search-search-after
+ * 使用search_after逐页遍历结果集，消费当前页时异步预取下一页，内存中最多同时持有两页数据
+ * 传入的SearchSourceBuilder必须已设置稳定的排序(含唯一的tiebreaker字段，应使用doc_values字段而非_id)
+ */
+class SearchAfterIterator implements Iterator<SearchHit> {
+
+    private final RestHighLevelClient client;
+    private final ESMetrics metrics;
+    private final SearchSourceBuilder template;
+    private final String[] indexs;
+    private final int pageSize;
+
+    private SearchHit[] current = new SearchHit[0];
+    private int position;
+    private CompletableFuture<SearchHit[]> next;
+    private Cancellable inFlight;   //预取下一页的请求，提前关闭时取消
+
+    SearchAfterIterator(RestHighLevelClient client, ESMetrics metrics, SearchSourceBuilder template, String ...indexs){
+        this.client = client;
+        this.metrics = metrics;
+        this.template = template;
+        this.indexs = indexs;
+        this.pageSize = template.size();
+        this.next = fetch(null);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= current.length) {
+            if (next == null) {
+                return false;
+            }
+            try {
+                current = next.join();
+            } catch (CompletionException | CancellationException e) {
+                next = null;
+                throw unwrap(e);
+            }
+            position = 0;
+            //不足一页说明已经到最后一页，不再预取
+            next = current.length < pageSize ? null : fetch(current[current.length - 1].getSortValues());
+        }
+        return true;
+    }
+
+    @Override
+    public SearchHit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SearchHit hit = current[position];
+        current[position++] = null;   //已消费的记录及时释放
+        return hit;
+    }
+
+    /**
+     * 提前结束遍历时取消预取下一页的请求，由Stream.onClose调用
+     */
+    void close(){
+        CompletableFuture<SearchHit[]> pending = next;
+        next = null;
+        current = new SearchHit[0];
+        if (pending != null && pending.cancel(false)) {
+            inFlight.cancel();   //中止已发送的请求，释放连接
+        }
+    }
+
+    /**
+     * 取出异步查询的原始异常，IOException包装为UncheckedIOException
+     */
+    private static RuntimeException unwrap(RuntimeException e){
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof IOException) {
+            return new UncheckedIOException((IOException) cause);
+        }
+        return new ElasticsearchException(cause);
+    }
+
+    private CompletableFuture<SearchHit[]> fetch(Object[] searchAfter){
+        SearchSourceBuilder query = template.copyWithNewSlice(template.slice())   //7.5没有公开的shallowCopy()
+                .size(pageSize)
+                .trackTotalHits(false);   //遍历时不需要统计总数
+        if (searchAfter != null) {
+            query.searchAfter(searchAfter);
+        }
+        return metrics.recordAsync("streamDocument", ESMetrics.indexTag(indexs), options -> {
+            CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+            inFlight = client.searchAsync(new SearchRequest(indexs).source(query), options, ActionListener.wrap(future::complete, future::completeExceptionally));
+            return future;
+        }).thenApply(searchResponse -> searchResponse.getHits().getHits());
+    }
+}
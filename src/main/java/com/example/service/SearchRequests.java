@@ -0,0 +1,92 @@
+package com.example.service;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Request;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.StringJoiner;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-search.html#search-search-api-query-params
+ * 用低级客户端发送SearchRequest时构造请求地址和参数，与RestHighLevelClient(RequestConverters.search)保持一致：
+ * 索引名逐个按URI路径编码，复制search_type、scroll、indices options、batched_reduce_size等全部参数，
+ * 并带上typed_keys，SearchResponse.fromXContent才能解析聚合结果；请求体由调用方设置
+ */
+final class SearchRequests {
+
+    private SearchRequests(){
+    }
+
+    static Request toLowLevel(SearchRequest request){
+        Request lowLevelRequest = new Request("POST", endpoint(request.indices(), request.types()));
+        lowLevelRequest.addParameter("typed_keys", "true");
+        if (request.routing() != null) {
+            lowLevelRequest.addParameter("routing", request.routing());
+        }
+        if (request.preference() != null) {
+            lowLevelRequest.addParameter("preference", request.preference());
+        }
+        IndicesOptions indicesOptions = request.indicesOptions();
+        lowLevelRequest.addParameter("ignore_unavailable", Boolean.toString(indicesOptions.ignoreUnavailable()));
+        lowLevelRequest.addParameter("allow_no_indices", Boolean.toString(indicesOptions.allowNoIndices()));
+        lowLevelRequest.addParameter("expand_wildcards", expandWildcards(indicesOptions));
+        lowLevelRequest.addParameter("search_type", request.searchType().name().toLowerCase(Locale.ROOT));
+        lowLevelRequest.addParameter("ccs_minimize_roundtrips", Boolean.toString(request.isCcsMinimizeRoundtrips()));
+        lowLevelRequest.addParameter("pre_filter_shard_size", Integer.toString(request.getPreFilterShardSize()));
+        lowLevelRequest.addParameter("max_concurrent_shard_requests", Integer.toString(request.getMaxConcurrentShardRequests()));
+        if (request.requestCache() != null) {
+            lowLevelRequest.addParameter("request_cache", request.requestCache().toString());
+        }
+        if (request.allowPartialSearchResults() != null) {
+            lowLevelRequest.addParameter("allow_partial_search_results", request.allowPartialSearchResults().toString());
+        }
+        lowLevelRequest.addParameter("batched_reduce_size", Integer.toString(request.getBatchedReduceSize()));
+        if (request.scroll() != null) {
+            lowLevelRequest.addParameter("scroll", request.scroll().keepAlive().getStringRep());
+        }
+        return lowLevelRequest;
+    }
+
+    private static String expandWildcards(IndicesOptions indicesOptions){
+        StringJoiner joiner = new StringJoiner(",");
+        if (indicesOptions.expandWildcardsOpen()) {
+            joiner.add("open");
+        }
+        if (indicesOptions.expandWildcardsClosed()) {
+            joiner.add("closed");
+        }
+        return joiner.length() == 0 ? "none" : joiner.toString();
+    }
+
+    private static String endpoint(String[] indices, String[] types){
+        StringBuilder endpoint = new StringBuilder();
+        appendPart(endpoint, indices);
+        appendPart(endpoint, types);
+        return endpoint.append("/_search").toString();
+    }
+
+    private static void appendPart(StringBuilder endpoint, String[] parts){
+        if (parts == null || parts.length == 0) {
+            return;
+        }
+        StringJoiner joiner = new StringJoiner(",");
+        for (String part : parts) {
+            joiner.add(encode(part));
+        }
+        endpoint.append('/').append(joiner);
+    }
+
+    /**
+     * 按URI路径编码，路径分隔符/也需要编码
+     */
+    private static String encode(String part){
+        try {
+            return new URI(null, null, null, -1, "/" + part, null, null).getRawPath().substring(1).replaceAll("/", "%2F");
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("cannot build search endpoint for [" + part + "]", e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.service;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.ScoreSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 查询响应的裁剪选项，用于只需要id和少量字段的列表查询，减少传输字节数和解析耗时
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/common-options.html#common-options-response-filtering
+ * filterPath       通过filter_path只返回需要的部分，如hits.hits._id、hits.hits._source
+ * trackTotalHits   为false时不统计总数
+ * skipScoring      按字段排序(不含_score)时将查询包装为constant_score，不计算相关度得分
+ * docValueFields   使用docvalue_fields读取字段并关闭_source，结果在hit.getFields()中
+ * gzip             响应使用gzip压缩(es.compression为全局开关)
+ * 裁剪后的响应不再包含聚合解析所需的信息，带聚合的查询不要使用
+ */
+public class SearchShape {
+
+    /**
+     * 保证响应中一定有hits对象，否则没有命中时hits会被filter_path整个过滤掉
+     */
+    private static final String[] REQUIRED_PATHS = {"took", "hits.max_score"};
+
+    private String[] filterPath;
+    private boolean trackTotalHits = true;
+    private boolean skipScoring;
+    private String[] docValueFields;
+    private boolean gzip;
+
+
+    /**
+     * 列表查询的常用组合：只返回_id、_source、排序值和高亮，不统计总数，按字段排序时不计算得分，响应使用gzip
+     */
+    public static SearchShape list(){
+        return new SearchShape()
+                .filterPath("hits.hits._id", "hits.hits._source", "hits.hits.sort", "hits.hits.highlight", "hits.hits.fields")
+                .trackTotalHits(false)
+                .skipScoring(true)
+                .gzip(true);
+    }
+
+    /**
+     * 只返回文档id
+     */
+    public static SearchShape ids(){
+        return new SearchShape()
+                .filterPath("hits.hits._id")
+                .trackTotalHits(false)
+                .skipScoring(true)
+                .docValueFields()
+                .gzip(true);
+    }
+
+    public SearchShape filterPath(String ...filterPath){
+        this.filterPath = filterPath;
+        return this;
+    }
+
+    public SearchShape trackTotalHits(boolean trackTotalHits){
+        this.trackTotalHits = trackTotalHits;
+        return this;
+    }
+
+    public SearchShape skipScoring(boolean skipScoring){
+        this.skipScoring = skipScoring;
+        return this;
+    }
+
+    /**
+     * @param fields  需要读取的字段，为空时只关闭_source
+     */
+    public SearchShape docValueFields(String ...fields){
+        this.docValueFields = fields;
+        return this;
+    }
+
+    public SearchShape gzip(boolean gzip){
+        this.gzip = gzip;
+        return this;
+    }
+
+    public boolean isGzip(){
+        return gzip;
+    }
+
+    /**
+     * filter_path参数，没有设置时为null
+     */
+    public String filterPathParam(){
+        if (filterPath == null || filterPath.length == 0) {
+            return null;
+        }
+        Set<String> paths = new LinkedHashSet<>();
+        for (String path : REQUIRED_PATHS) {
+            paths.add(path);
+        }
+        for (String path : filterPath) {
+            paths.add(path);
+        }
+        return String.join(",", paths);
+    }
+
+    /**
+     * 在查询条件的副本上应用裁剪选项，不修改传入的查询条件
+     */
+    public SearchSourceBuilder apply(SearchSourceBuilder source){
+        SearchSourceBuilder shaped = source == null ? new SearchSourceBuilder() : source.copyWithNewSlice(source.slice());
+        if (!trackTotalHits) {
+            shaped.trackTotalHits(false);
+        }
+        if (skipScoring && sortedByField(shaped.sorts())) {
+            QueryBuilder query = shaped.query();
+            if (query != null) {
+                shaped.query(QueryBuilders.constantScoreQuery(query));
+            }
+            shaped.trackScores(false);
+        }
+        if (docValueFields != null) {
+            shaped.fetchSource(false);
+            for (String field : docValueFields) {
+                shaped.docValueField(field);
+            }
+        }
+        return shaped;
+    }
+
+    private static boolean sortedByField(List<SortBuilder<?>> sorts){
+        if (sorts == null || sorts.isEmpty()) {
+            return false;
+        }
+        for (SortBuilder<?> sort : sorts) {
+            if (sort instanceof ScoreSortBuilder) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.service;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-template.html
+ * 参数化的查询模板：每种查询结构只定义一次(mustache)，调用时只传参数，不再每次构建和序列化整棵查询树
+ * es.template.stored为true时模板在第一次使用时保存为stored script，之后请求只携带模板id和参数；
+ * 为false时每次携带模板原文(服务端按原文缓存编译结果)
+ */
+@Component
+public class SearchTemplates {
+
+    /**
+     * 多字段模糊查询，参数：query、minimum_should_match、description_boost
+     * 对应searchByConditionMultiQuery
+     */
+    public static final String MULTI_MATCH = "course_multi_match";
+
+    /**
+     * 多字段模糊查询 + studymodel精确匹配，参数：query、studymodel、name_boost
+     * 对应searchBooleanQuery
+     */
+    public static final String BOOL_MULTI_MATCH_TERM = "course_bool_multi_match_term";
+
+    /**
+     * studymodel精确过滤 + 价格区间过滤，参数：studymodel、min_price、max_price
+     * 对应searchByFilter
+     */
+    public static final String FILTER_TERM_RANGE = "course_filter_term_range";
+
+    /**
+     * description过滤 + 价格区间过滤并高亮description，参数：description、min_price、max_price、pre_tag、post_tag
+     * 对应searchByFilterWithHighLight
+     */
+    public static final String FILTER_HIGHLIGHT = "course_filter_highlight";
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Value("${es.template.stored:true}")
+    private boolean stored;
+
+    private final ConcurrentMap<String, String> sources = new ConcurrentHashMap<>();
+
+    /**
+     * 已保存到集群的模板
+     */
+    private final Set<String> storedIds = ConcurrentHashMap.newKeySet();
+
+    public SearchTemplates(){
+        register(MULTI_MATCH, "{\"query\":{\"multi_match\":{"
+                + "\"query\":\"{{query}}\","
+                + "\"minimum_should_match\":\"{{minimum_should_match}}{{^minimum_should_match}}50%{{/minimum_should_match}}\","
+                + "\"fields\":[\"name\",\"description^{{description_boost}}{{^description_boost}}10{{/description_boost}}\"]}}}");
+        register(BOOL_MULTI_MATCH_TERM, "{\"query\":{\"bool\":{\"must\":["
+                + "{\"multi_match\":{\"query\":\"{{query}}\",\"minimum_should_match\":\"50%\","
+                + "\"fields\":[\"name^{{name_boost}}{{^name_boost}}10{{/name_boost}}\",\"description\"]}},"
+                + "{\"term\":{\"studymodel\":\"{{studymodel}}\"}}]}}}");
+        register(FILTER_TERM_RANGE, "{\"_source\":[\"name\",\"studymodel\",\"price\",\"description\"],"
+                + "\"query\":{\"bool\":{\"must\":[{\"match_all\":{}}],\"filter\":["
+                + "{\"term\":{\"studymodel\":\"{{studymodel}}\"}},"
+                + "{\"range\":{\"price\":{\"gte\":{{min_price}},\"lte\":{{max_price}}}}}]}}}");
+        register(FILTER_HIGHLIGHT, "{\"_source\":[\"name\",\"studymodel\",\"price\",\"description\"],"
+                + "\"query\":{\"bool\":{\"must\":[{\"match_all\":{}}],\"filter\":["
+                + "{\"match\":{\"description\":\"{{description}}\"}},"
+                + "{\"range\":{\"price\":{\"gte\":{{min_price}},\"lte\":{{max_price}}}}}]}},"
+                + "\"highlight\":{\"pre_tags\":[\"{{pre_tag}}{{^pre_tag}}<tag>{{/pre_tag}}\"],"
+                + "\"post_tags\":[\"{{post_tag}}{{^post_tag}}</tag>{{/post_tag}}\"],\"fields\":{\"description\":{}}}}");
+    }
+
+    /**
+     * 注册查询模板，同名模板会被覆盖(已保存到集群的会在下次使用时重新保存)
+     * @param name     模板名，保存到集群时作为stored script的id
+     * @param source   mustache模板原文
+     */
+    public void register(String name, String source){
+        sources.put(name, source);
+        storedIds.remove(name);
+    }
+
+    /**
+     * 构建模板查询请求
+     * @param name     模板名
+     * @param params   模板参数
+     * @param indexs   需要查询的索引库（可多个）
+     * @return
+     * @throws IOException  模板保存到集群失败
+     */
+    public SearchTemplateRequest request(String name, Map<String, Object> params, String ...indexs) throws IOException {
+        String source = sources.get(name);
+        if (source == null) {
+            throw new IllegalArgumentException("unknown search template [" + name + "]");
+        }
+        if (stored && !storedIds.contains(name)) {
+            client.putScript(storedScript(name, source), requestOptions);
+            storedIds.add(name);
+        }
+        return build(name, source, params, indexs);
+    }
+
+    /**
+     * 构建模板查询请求，第一次使用时异步保存模板，不阻塞调用线程
+     * @param name     模板名
+     * @param params   模板参数
+     * @param indexs   需要查询的索引库（可多个）
+     * @return         模板不存在或保存到集群失败时以异常结束
+     */
+    public CompletableFuture<SearchTemplateRequest> requestAsync(String name, Map<String, Object> params, String ...indexs){
+        CompletableFuture<SearchTemplateRequest> result = new CompletableFuture<>();
+        String source = sources.get(name);
+        if (source == null) {
+            result.completeExceptionally(new IllegalArgumentException("unknown search template [" + name + "]"));
+            return result;
+        }
+        if (!stored || storedIds.contains(name)) {
+            result.complete(build(name, source, params, indexs));
+            return result;
+        }
+        try {
+            client.putScriptAsync(storedScript(name, source), requestOptions, ActionListener.wrap(response -> {
+                storedIds.add(name);
+                result.complete(build(name, source, params, indexs));
+            }, result::completeExceptionally));
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private SearchTemplateRequest build(String name, String source, Map<String, Object> params, String ...indexs){
+        SearchTemplateRequest request = new SearchTemplateRequest(new SearchRequest(indexs));
+        if (stored) {
+            request.setScriptType(ScriptType.STORED);
+            request.setScript(name);
+        } else {
+            request.setScriptType(ScriptType.INLINE);
+            request.setScript(source);
+        }
+        request.setScriptParams(params);
+        return request;
+    }
+
+    /**
+     * https://www.elastic.co/guide/en/elasticsearch/client/java-rest/7.5/java-rest-high-put-stored-script.html
+     * 每个模板只保存一次，并发的首次调用可能重复保存，结果相同
+     */
+    private static PutStoredScriptRequest storedScript(String name, String source) throws IOException {
+        XContentBuilder content = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("script")
+                        .field("lang", "mustache")
+                        .field("source", source)
+                    .endObject()
+                .endObject();
+        return new PutStoredScriptRequest()
+                .id(name)
+                .content(BytesReference.bytes(content), XContentType.JSON);
+    }
+}
@@ -0,0 +1,365 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.Scroll;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/search-profile.html
+ * 慢查询采样：took超过es.profiler.threshold-ms或按es.profiler.sample-rate抽中的查询，在后台加上profile=true重新执行一次，
+ * 各分片、各查询组件(如multi_match展开的各个TermQuery、range、collector、聚合)的耗时保存在本地的环形缓冲区中，
+ * 通过/actuator/esslowqueries查看，按查询指纹(去掉查询值、分页后的查询结构)归类
+ * 7.5的Profile API不统计fetch阶段(如高亮)，took与查询阶段耗时的差值大时说明开销主要在fetch阶段
+ */
+@Component
+@Endpoint(id = "esslowqueries")
+public class SlowQueryProfiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryProfiler.class);
+
+    /**
+     * 指纹中替换为?的查询值
+     */
+    private static final Set<String> VALUE_KEYS = new HashSet<>(Arrays.asList(
+            "query", "value", "values", "from", "to", "gt", "gte", "lt", "lte", "like"));
+
+    /**
+     * 指纹中去掉的顶层参数，只影响分页和返回内容
+     */
+    private static final Set<String> IGNORED_KEYS = new HashSet<>(Arrays.asList(
+            "from", "size", "search_after", "profile", "track_total_hits", "_source"));
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Value("${es.profiler.enabled:false}")
+    private boolean enabled;
+    @Value("${es.profiler.threshold-ms:500}")
+    private long thresholdMs;
+    @Value("${es.profiler.sample-rate:0}")
+    private double sampleRate;
+    @Value("${es.profiler.capacity:100}")
+    private int capacity;
+    @Value("${es.profiler.max-concurrent:1}")
+    private int maxConcurrent;
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private Profile[] ring;
+    private int next;
+
+    private Counter slow;
+    private Counter sampled;
+    private Counter skipped;
+
+
+    @PostConstruct
+    public void init(){
+        ring = new Profile[Math.max(capacity, 1)];
+        slow = Counter.builder("es.profiler.captured").tag("reason", "slow").register(registry);
+        sampled = Counter.builder("es.profiler.captured").tag("reason", "sampled").register(registry);
+        skipped = Counter.builder("es.profiler.skipped").register(registry);
+    }
+
+    /**
+     * 一次查询完成后调用，需要采样时在后台重新执行，不阻塞调用方
+     * @param request    原查询请求
+     * @param response   原查询结果
+     */
+    public void observe(SearchRequest request, SearchResponse response){
+        if (!enabled || response == null || request.source() == null || request.source().profile()) {
+            return;
+        }
+        long took = response.getTook() == null ? -1 : response.getTook().millis();
+        String reason;
+        if (took >= thresholdMs) {
+            reason = "slow";
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            reason = "sampled";
+        } else {
+            return;
+        }
+        //profile的查询本身更慢，同时执行的数量有上限，超过时放弃本次采样
+        if (running.incrementAndGet() > maxConcurrent) {
+            running.decrementAndGet();
+            skipped.increment();
+            return;
+        }
+        try {
+            rerun(request, reason, took);
+        } catch (Exception e) {
+            running.decrementAndGet();
+            logger.warn("failed to profile query", e);
+        }
+    }
+
+    /**
+     * 最近的采样结果，最新的在前
+     */
+    @ReadOperation
+    public List<Profile> profiles(){
+        List<Profile> profiles = new ArrayList<>(ring.length);
+        synchronized (this) {
+            for (int i = 1; i <= ring.length; i++) {
+                Profile profile = ring[(next - i + ring.length) % ring.length];
+                if (profile != null) {
+                    profiles.add(profile);
+                }
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * 某个查询指纹的采样结果
+     */
+    @ReadOperation
+    public List<Profile> byFingerprint(@Selector String fingerprint){
+        List<Profile> profiles = profiles();
+        profiles.removeIf(profile -> !profile.getFingerprint().equals(fingerprint));
+        return profiles;
+    }
+
+    @DeleteOperation
+    public synchronized void clear(){
+        Arrays.fill(ring, null);
+        next = 0;
+    }
+
+    /**
+     * 低级客户端发送，索引、preference、routing、indices options等参数与原查询一致(同样的分片副本)，
+     * 不带scroll，filter_path只保留took和profile，不经过对冲、限流和指标统计
+     */
+    private void rerun(SearchRequest request, String reason, long took) throws Exception{
+        SearchSourceBuilder source = request.source().copyWithNewSlice(request.source().slice()).profile(true);
+        String[] indices = request.indices();
+        Request lowLevelRequest = SearchRequests.toLowLevel(new SearchRequest(request).scroll((Scroll) null));
+        lowLevelRequest.addParameter("filter_path", "took,profile");
+        lowLevelRequest.setJsonEntity(Strings.toString(source));
+        lowLevelRequest.setOptions(requestOptions);
+        String[] fingerprint = fingerprint(request.source());
+        client.getLowLevelClient().performRequestAsync(lowLevelRequest, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try (InputStream content = response.getEntity().getContent()) {
+                    Map<String, Object> profiled = XContentHelper.convertToMap(XContentType.JSON.xContent(), content, false);
+                    add(new Profile(fingerprint[0], fingerprint[1], indices, reason, took, profiled));
+                    (reason.equals("slow") ? slow : sampled).increment();
+                } catch (Exception e) {
+                    logger.warn("failed to parse profile response", e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                running.decrementAndGet();
+                logger.warn("failed to profile query", e);
+            }
+        });
+    }
+
+    private synchronized void add(Profile profile){
+        ring[next] = profile;
+        next = (next + 1) % ring.length;
+    }
+
+    /**
+     * 查询指纹：去掉分页参数、把查询值替换为?后的查询结构，以及它的哈希
+     * @return  [哈希, 查询结构]
+     */
+    static String[] fingerprint(SearchSourceBuilder source){
+        Map<String, Object> map = XContentHelper.convertToMap(XContentType.JSON.xContent(), Strings.toString(source), true);
+        IGNORED_KEYS.forEach(map::remove);
+        String shape = String.valueOf(normalize(map, false));
+        return new String[]{Integer.toHexString(shape.hashCode()), shape};
+    }
+
+    /**
+     * 键按名称排序，VALUE_KEYS下的值和terms查询的值数组替换为?
+     */
+    @SuppressWarnings("unchecked")
+    private static Object normalize(Object value, boolean mask){
+        if (value instanceof Map) {
+            Map<String, Object> normalized = new TreeMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                normalized.put(entry.getKey(), normalize(entry.getValue(), VALUE_KEYS.contains(entry.getKey())));
+            }
+            return normalized;
+        }
+        if (value instanceof List) {
+            if (mask) {
+                return "?";
+            }
+            List<Object> normalized = new ArrayList<>();
+            for (Object item : (List<Object>) value) {
+                normalized.add(normalize(item, false));
+            }
+            return normalized;
+        }
+        return mask ? "?" : value;
+    }
+
+    /**
+     * 一次采样结果
+     */
+    public static class Profile {
+        private final String fingerprint;
+        private final String shape;
+        private final List<String> indices;
+        private final String reason;
+        private final long took;
+        private final long timestamp = System.currentTimeMillis();
+        private final Map<String, Long> components;
+        private final Map<String, Object> profile;
+
+        @SuppressWarnings("unchecked")
+        Profile(String fingerprint, String shape, String[] indices, String reason, long took, Map<String, Object> response) {
+            this.fingerprint = fingerprint;
+            this.shape = shape;
+            this.indices = Arrays.asList(indices);
+            this.reason = reason;
+            this.took = took;
+            Object profile = response.get("profile");
+            this.profile = profile instanceof Map ? (Map<String, Object>) profile : Collections.<String, Object>emptyMap();
+            this.components = components(this.profile);
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * 去掉查询值后的查询结构
+         */
+        public String getShape() {
+            return shape;
+        }
+
+        public List<String> getIndices() {
+            return indices;
+        }
+
+        /**
+         * slow或sampled
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * 原查询的took(毫秒)
+         */
+        public long getTook() {
+            return took;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 各组件在所有分片上的耗时之和(纳秒)，查询按类型(如TermQuery、BooleanQuery)，另有rewrite、collector、聚合
+         * 按耗时从大到小排列
+         */
+        public Map<String, Long> getComponents() {
+            return components;
+        }
+
+        /**
+         * Profile API返回的完整结果，按分片区分
+         */
+        public Map<String, Object> getProfile() {
+            return profile;
+        }
+
+        private static Map<String, Long> components(Map<String, Object> profile){
+            Map<String, Long> totals = new TreeMap<>();
+            for (Map<String, Object> shard : list(profile.get("shards"))) {
+                for (Map<String, Object> search : list(shard.get("searches"))) {
+                    for (Map<String, Object> query : list(search.get("query"))) {
+                        addQuery(totals, query);
+                    }
+                    add(totals, "rewrite", search.get("rewrite_time"));
+                    for (Map<String, Object> collector : list(search.get("collector"))) {
+                        add(totals, "collector:" + collector.get("name"), collector.get("time_in_nanos"));
+                    }
+                }
+                for (Map<String, Object> aggregation : list(shard.get("aggregations"))) {
+                    add(totals, "aggregation:" + aggregation.get("type"), aggregation.get("time_in_nanos"));
+                }
+            }
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(totals.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            Map<String, Long> sorted = new LinkedHashMap<>();
+            entries.forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+            return sorted;
+        }
+
+        /**
+         * 查询的time_in_nanos包含子查询，这里只统计自身耗时(减去子查询)
+         */
+        private static void addQuery(Map<String, Long> totals, Map<String, Object> query){
+            long self = number(query.get("time_in_nanos"));
+            for (Map<String, Object> child : list(query.get("children"))) {
+                self -= number(child.get("time_in_nanos"));
+                addQuery(totals, child);
+            }
+            add(totals, "query:" + query.get("type"), Math.max(self, 0));
+        }
+
+        private static void add(Map<String, Long> totals, String name, Object nanos){
+            totals.merge(name, number(nanos), Long::sum);
+        }
+
+        private static long number(Object value){
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static List<Map<String, Object>> list(Object value){
+            return value instanceof List ? (List<Map<String, Object>>) value : Collections.<Map<String, Object>>emptyList();
+        }
+    }
+}
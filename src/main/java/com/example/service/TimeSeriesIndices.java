@@ -0,0 +1,437 @@
+package com.example.service;
+
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.PutIndexTemplateRequest;
+import org.elasticsearch.client.indices.rollover.RolloverRequest;
+import org.elasticsearch.client.indices.rollover.RolloverResponse;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.aggregations.metrics.Min;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/indices-rollover-index.html
+ * 按时间分索引：es.timeseries.aliases中的别名不再对应一个不断增长的索引，写入时按文档的时间字段分到按天/按小时的索引(别名-2020.01.01)，
+ * 或写入别名的write index并按大小、文档数、时间rollover(别名-000001)；查询时按查询条件中时间字段的range只查询时间重叠的索引
+ * 时间字段没有时区，与服务端一致按UTC处理；分出的索引只适合追加写入，按id更新、删除需要使用具体的索引名
+ */
+@Component
+public class TimeSeriesIndices {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeSeriesIndices.class);
+
+    private static final DateTimeFormatter DAILY = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+    private static final DateTimeFormatter HOURLY = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH");
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    @Autowired
+    private RequestOptions requestOptions;
+
+    @Value("${es.timeseries.aliases:}")
+    private String[] aliases;
+    @Value("${es.timeseries.bucket:daily}")
+    private String bucket;
+    @Value("${es.timeseries.timestamp-field:timestamp}")
+    private String timestampField;
+    @Value("${es.timeseries.timestamp-format:yyyy-MM-dd HH:mm:ss}")
+    private String timestampFormat;
+    @Value("${es.timeseries.max-buckets:64}")
+    private int maxBuckets;
+    @Value("${es.timeseries.rollover.max-size-gb:30}")
+    private long maxSizeGb;
+    @Value("${es.timeseries.rollover.max-docs:0}")
+    private long maxDocs;
+    @Value("${es.timeseries.rollover.max-age-ms:86400000}")
+    private long maxAgeMs;
+    @Value("${es.timeseries.rollover.check-interval-ms:60000}")
+    private long checkIntervalMs;
+
+    private final Set<String> timeSeries = new HashSet<>();
+    private final Set<String> bootstrapped = ConcurrentHashMap.newKeySet();
+
+    /**
+     * rollover方式下各索引时间字段的最小、最大值(UTC毫秒)，定时更新
+     */
+    private final Map<String, Map<String, long[]>> ranges = new ConcurrentHashMap<>();
+
+    private DateTimeFormatter format;
+    private ScheduledExecutorService scheduler;
+
+
+    @PostConstruct
+    public void init(){
+        for (String alias : aliases) {
+            if (!alias.trim().isEmpty()) {
+                timeSeries.add(alias.trim());
+            }
+        }
+        format = DateTimeFormatter.ofPattern(timestampFormat);
+        if (isRollover() && !timeSeries.isEmpty()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "es-rollover");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::check, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close(){
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isTimeSeries(String alias){
+        return timeSeries.contains(alias);
+    }
+
+    /**
+     * 确定文档写入的索引：按天/按小时时改为文档时间所在的索引，rollover时写入别名(即write index)
+     * 第一次写入某个别名时创建索引模板，rollover方式下同时创建第一个索引
+     * @param request   写入请求，index为别名
+     * @return          同一个请求
+     * @throws IOException
+     */
+    public IndexRequest route(IndexRequest request) throws IOException{
+        String alias = request.index();
+        if (!isTimeSeries(alias)) {
+            return request;
+        }
+        bootstrap(alias);
+        if (!isRollover()) {
+            Object timestamp = timestamp(request);
+            LocalDateTime time = timestamp == null ? LocalDateTime.now(ZoneOffset.UTC) : parse(timestamp, ZoneOffset.UTC);
+            if (time == null) {
+                throw new IllegalArgumentException("cannot parse [" + timestampField + "] value [" + timestamp + "]");
+            }
+            request.index(bucketName(alias, time));
+        }
+        return request;
+    }
+
+    /**
+     * 查询时间范围[from, to]可能涉及的索引
+     * @param alias   别名
+     * @param from    开始时间，null为不限
+     * @param to      结束时间，null为不限
+     * @return        需要查询的索引，无法缩小范围时返回别名本身
+     */
+    public String[] indices(String alias, LocalDateTime from, LocalDateTime to){
+        if (!isTimeSeries(alias) || (from == null && to == null)) {
+            return new String[]{alias};
+        }
+        List<String> names = isRollover() ? overlapping(alias, from, to) : buckets(alias, from, to);
+        //空的索引列表在查询时等同于查询所有索引
+        return names == null || names.isEmpty() ? new String[]{alias} : names.toArray(new String[0]);
+    }
+
+    /**
+     * 查询只有一个别名且查询条件(顶层或bool的filter/must中)有时间字段的range时，缩小为时间重叠的索引
+     * 不存在的按天/按小时索引忽略(ignore_unavailable)；range的time_zone按该时区换算，设置了其他format时不缩小范围
+     * @param request   查询请求
+     * @return          同一个请求
+     */
+    public SearchRequest prune(SearchRequest request){
+        if (timeSeries.isEmpty() || request.indices().length != 1 || !isTimeSeries(request.indices()[0])
+                || request.source() == null) {
+            return request;
+        }
+        RangeQueryBuilder range = findRange(request.source().query());
+        if (range == null) {
+            return request;
+        }
+        if (range.format() != null && !range.format().equals(timestampFormat)) {
+            return request;   //其他日期格式(含ES内置格式名)不在客户端解析，不缩小范围
+        }
+        ZoneId zone;
+        try {
+            zone = range.timeZone() == null ? ZoneOffset.UTC : ZoneId.of(range.timeZone());
+        } catch (DateTimeException e) {
+            return request;
+        }
+        LocalDateTime from = range.from() == null ? null : parse(range.from(), zone);
+        LocalDateTime to = range.to() == null ? null : parse(range.to(), zone);
+        if ((range.from() != null && from == null) || (range.to() != null && to == null)) {
+            return request;   //如now-1d等日期表达式，不缩小范围
+        }
+        String alias = request.indices()[0];
+        String[] indices = indices(alias, from, to);
+        if (indices.length != 1 || !alias.equals(indices[0])) {
+            logger.debug("pruned [{}] to {}", alias, Arrays.asList(indices));
+            request.indices(indices);
+            request.indicesOptions(IndicesOptions.lenientExpandOpen());
+        }
+        return request;
+    }
+
+    private boolean isRollover(){
+        return "rollover".equals(bucket);
+    }
+
+    private String bucketName(String alias, LocalDateTime time){
+        return alias + "-" + time.format("hourly".equals(bucket) ? HOURLY : DAILY);
+    }
+
+    private List<String> buckets(String alias, LocalDateTime from, LocalDateTime to){
+        ChronoUnit unit = "hourly".equals(bucket) ? ChronoUnit.HOURS : ChronoUnit.DAYS;
+        if (from == null) {
+            return null;
+        }
+        //没有结束时间时查到当前时间的下一个索引，包含时间稍有偏差的文档
+        LocalDateTime end = to != null ? to : LocalDateTime.now(ZoneOffset.UTC).plus(1, unit);
+        LocalDateTime time = from.truncatedTo(unit);
+        List<String> names = new ArrayList<>();
+        while (!time.isAfter(end)) {
+            if (names.size() >= maxBuckets) {
+                return null;
+            }
+            names.add(bucketName(alias, time));
+            time = time.plus(1, unit);
+        }
+        return names;
+    }
+
+    private List<String> overlapping(String alias, LocalDateTime from, LocalDateTime to){
+        Map<String, long[]> indexRanges = ranges.get(alias);
+        if (indexRanges == null || indexRanges.isEmpty()) {
+            return null;
+        }
+        long lower = from == null ? Long.MIN_VALUE : from.toInstant(ZoneOffset.UTC).toEpochMilli();
+        long upper = to == null ? Long.MAX_VALUE : to.toInstant(ZoneOffset.UTC).toEpochMilli();
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : indexRanges.entrySet()) {
+            long[] range = entry.getValue();
+            if (range[0] <= upper && range[1] >= lower) {
+                names.add(entry.getKey());
+            }
+        }
+        return names.isEmpty() ? Collections.singletonList(alias) : names;
+    }
+
+    private static RangeQueryBuilder findRange(QueryBuilder query, String field){
+        if (query instanceof RangeQueryBuilder) {
+            return field.equals(((RangeQueryBuilder) query).fieldName()) ? (RangeQueryBuilder) query : null;
+        }
+        if (query instanceof ConstantScoreQueryBuilder) {
+            return findRange(((ConstantScoreQueryBuilder) query).innerQuery(), field);
+        }
+        if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            List<QueryBuilder> required = new ArrayList<>(bool.filter());
+            required.addAll(bool.must());
+            for (QueryBuilder clause : required) {
+                RangeQueryBuilder range = findRange(clause, field);
+                if (range != null) {
+                    return range;
+                }
+            }
+        }
+        return null;
+    }
+
+    private RangeQueryBuilder findRange(QueryBuilder query){
+        return findRange(query, timestampField);
+    }
+
+    /**
+     * 解析为UTC时间
+     * @param zone   字符串时间所在的时区(range的time_zone)，epoch毫秒不受时区影响
+     * @return       无法解析时返回null
+     */
+    private LocalDateTime parse(Object value, ZoneId zone){
+        if (value instanceof Number) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(((Number) value).longValue()), ZoneOffset.UTC);
+        }
+        try {
+            return LocalDateTime.parse(value.toString(), format).atZone(zone)
+                    .withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 流式读取_source顶层的时间字段，找到后不再解析文档的其余部分
+     * @return   没有该字段或为null时返回null
+     */
+    private Object timestamp(IndexRequest request) throws IOException{
+        try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, request.source(), request.getContentType())) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                boolean found = timestampField.equals(parser.currentName());
+                XContentParser.Token token = parser.nextToken();
+                if (!found) {
+                    parser.skipChildren();   //其他字段，对象和数组整体跳过
+                    continue;
+                }
+                if (token == XContentParser.Token.VALUE_NUMBER) {
+                    return parser.longValue();
+                }
+                if (token == XContentParser.Token.VALUE_STRING) {
+                    return parser.text();
+                }
+                if (token == XContentParser.Token.VALUE_NULL) {
+                    return null;
+                }
+                throw new IllegalArgumentException("[" + timestampField + "] must be a date string or epoch millis, got " + token);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按天/按小时：索引模板匹配别名-*，新索引自动加入别名；rollover：创建别名-000001并设为write index，
+     * rollover生成的索引由rollover请求加入别名
+     */
+    private void bootstrap(String alias) throws IOException{
+        if (bootstrapped.contains(alias)) {
+            return;
+        }
+        synchronized (bootstrapped) {
+            if (bootstrapped.contains(alias)) {
+                return;
+            }
+            Map<String, Object> timestamp = new HashMap<>();
+            timestamp.put("type", "date");
+            timestamp.put("format", timestampFormat);
+            Map<String, Object> mapping = Collections.singletonMap("properties",
+                    Collections.singletonMap(timestampField, timestamp));
+            PutIndexTemplateRequest template = new PutIndexTemplateRequest(alias + "-template")
+                    .patterns(Collections.singletonList(alias + "-*"))
+                    .mapping(mapping);
+            if (!isRollover()) {
+                template.alias(new Alias(alias));
+            }
+            client.indices().putTemplate(template, requestOptions);
+            if (isRollover() && aliasIndices(alias).isEmpty()) {
+                client.indices().create(new CreateIndexRequest(alias + "-000001")
+                        .alias(new Alias(alias).writeIndex(true)), requestOptions);
+            }
+            bootstrapped.add(alias);
+        }
+    }
+
+    /**
+     * 定时检查rollover条件并更新各索引的时间范围
+     */
+    private void check(){
+        for (String alias : timeSeries) {
+            try {
+                if (!bootstrapped.contains(alias) && aliasIndices(alias).isEmpty()) {
+                    continue;   //还没有写入过
+                }
+                RolloverRequest request = new RolloverRequest(alias, null)
+                        .addMaxIndexAgeCondition(TimeValue.timeValueMillis(maxAgeMs));
+                if (maxSizeGb > 0) {
+                    request.addMaxIndexSizeCondition(new ByteSizeValue(maxSizeGb, ByteSizeUnit.GB));
+                }
+                if (maxDocs > 0) {
+                    request.addMaxIndexDocsCondition(maxDocs);
+                }
+                RolloverResponse response = client.indices().rollover(request, requestOptions);
+                if (response.isRolledOver()) {
+                    logger.info("rolled over [{}] from [{}] to [{}]", alias, response.getOldIndex(), response.getNewIndex());
+                }
+                refreshRanges(alias);
+            } catch (Exception e) {
+                logger.warn("failed to check rollover of [{}]", alias, e);
+            }
+        }
+    }
+
+    /**
+     * 一次聚合得到每个索引时间字段的最小、最大值；还没有文档的索引视为不限
+     * 最新的索引仍在写入，下次更新前可能写入更晚或更早(迟到)的文档，开始和结束时间都视为不限
+     */
+    private void refreshRanges(String alias) throws IOException{
+        TreeSet<String> indices = new TreeSet<>(aliasIndices(alias));
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .size(0)
+                .aggregation(AggregationBuilders.terms("index").field("_index").size(Math.max(indices.size(), 10))
+                        .subAggregation(AggregationBuilders.min("min").field(timestampField))
+                        .subAggregation(AggregationBuilders.max("max").field(timestampField)));
+        SearchResponse response = client.search(new SearchRequest(alias).source(source), requestOptions);
+        Map<String, long[]> indexRanges = new HashMap<>();
+        for (String index : indices) {
+            indexRanges.put(index, new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+        }
+        Terms terms = response.getAggregations().get("index");
+        for (Terms.Bucket item : terms.getBuckets()) {
+            Min min = item.getAggregations().get("min");
+            Max max = item.getAggregations().get("max");
+            indexRanges.put(item.getKeyAsString(), new long[]{(long) min.getValue(), (long) max.getValue()});
+        }
+        String newest = indices.isEmpty() ? null : indices.last();   //rollover生成的索引名按序号递增
+        if (newest != null) {
+            indexRanges.put(newest, new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+        }
+        ranges.put(alias, indexRanges);
+    }
+
+    private Set<String> aliasIndices(String alias) throws IOException{
+        GetAliasesResponse response = client.indices().getAlias(new GetAliasesRequest(alias), requestOptions);
+        if (response.status() == RestStatus.NOT_FOUND) {
+            return Collections.emptySet();
+        }
+        return response.getAliases().keySet();
+    }
+}
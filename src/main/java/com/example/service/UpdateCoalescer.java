@@ -0,0 +1,197 @@
+package com.example.service;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * https://www.elastic.co/guide/en/elasticsearch/reference/7.5/docs-update.html#update-api-example
+ * 合并同一文档的局部更新(write-behind)：同一index/id在一个时间窗口内的多次doc更新合并为一次，
+ * 同一字段以最后一次写入为准(对象字段逐层合并，与服务端合并doc的方式相同)，合并后通过ESBulkWriter发送，
+ * 并设置retry_on_conflict，窗口内的所有调用方得到同一个结果
+ */
+@Component
+public class UpdateCoalescer {
+
+    @Autowired
+    private ESBulkWriter bulkWriter;
+
+    @Value("${es.update-coalesce.enabled:false}")
+    private boolean enabled;
+    @Value("${es.update-coalesce.window-ms:100}")
+    private long windowMs;
+    @Value("${es.update-coalesce.max-pending:10000}")
+    private int maxPending;
+    @Value("${es.update-coalesce.retry-on-conflict:3}")
+    private int retryOnConflict;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-update-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 正在合并的更新，key为index/id，按首次更新的时间排序
+     */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * 已发送但尚未完成的合并更新，flush时等待
+     */
+    private final Map<CompletableFuture<BulkItemResponse>, Boolean> inFlight = new ConcurrentHashMap<>();
+
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * 提交一次局部更新
+     * @param index    索引库
+     * @param id       文档id
+     * @param doc      更新的字段
+     * @return         合并后的更新结果
+     */
+    public CompletableFuture<BulkItemResponse> update(String index, String id, Map<String, Object> doc){
+        String key = index + "/" + id;
+        Pending batch;
+        List<Pending> overflow = null;
+        synchronized (pending) {
+            batch = pending.get(key);
+            if (batch == null) {
+                batch = new Pending(index, id);
+                pending.put(key, batch);
+                final Pending scheduled = batch;
+                scheduler.schedule(() -> flush(key, scheduled), windowMs, TimeUnit.MILLISECONDS);
+                if (pending.size() > maxPending) {
+                    overflow = drain(pending.size() - maxPending);   //积压过多时提前发送最早的
+                }
+            }
+            merge(batch.doc, doc);
+        }
+        if (overflow != null) {
+            overflow.forEach(this::send);
+        }
+        return batch.result.thenApply(item -> item);   //返回副本，调用方取消不影响其他调用方
+    }
+
+    /**
+     * 立即发送所有正在合并的更新，并等待已发送的更新完成
+     * @return   全部完成时结束，单个更新失败不影响其他更新，失败通过各自的future返回
+     */
+    public CompletableFuture<Void> flush(){
+        List<Pending> batches;
+        synchronized (pending) {
+            batches = drain(pending.size());
+        }
+        batches.forEach(this::send);
+        bulkWriter.flush();
+        CompletableFuture<?>[] futures = inFlight.keySet().stream()
+                .map(future -> future.handle((item, e) -> null))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * 立即发送该文档正在合并的更新，用于同一文档的其他批量写入(如删除)之前，保证写入顺序
+     * @param index    索引库
+     * @param id       文档id
+     */
+    public void flush(String index, String id){
+        String key = index + "/" + id;
+        Pending batch;
+        synchronized (pending) {
+            batch = pending.remove(key);
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws Exception {
+        scheduler.shutdownNow();
+        flush().get(30, TimeUnit.SECONDS);
+    }
+
+    private void flush(String key, Pending batch){
+        synchronized (pending) {
+            if (pending.get(key) != batch) {
+                return;   //已被提前发送
+            }
+            pending.remove(key);
+        }
+        send(batch);
+    }
+
+    private List<Pending> drain(int count){
+        List<Pending> batches = new ArrayList<>(count);
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext() && batches.size() < count) {
+            batches.add(iterator.next());
+            iterator.remove();
+        }
+        return batches;
+    }
+
+    private void send(Pending batch){
+        UpdateRequest request = new UpdateRequest(batch.index, batch.id)
+                .doc(batch.doc)
+                .retryOnConflict(retryOnConflict);   //合并后的doc与当前版本无关，冲突时在服务端重新读取后再合并
+        CompletableFuture<BulkItemResponse> future = bulkWriter.add(request);
+        inFlight.put(future, Boolean.TRUE);
+        future.whenComplete((item, e) -> {
+            inFlight.remove(future);
+            if (e != null) {
+                batch.result.completeExceptionally(e);
+            } else {
+                batch.result.complete(item);
+            }
+        });
+    }
+
+    /**
+     * 后写入的字段覆盖先写入的，两者都是对象时逐层合并
+     */
+    @SuppressWarnings("unchecked")
+    static void merge(Map<String, Object> target, Map<String, Object> source){
+        for (Map.Entry<String, Object> entry : source.entrySet()) {
+            Object current = target.get(entry.getKey());
+            Object value = entry.getValue();
+            if (current instanceof Map && value instanceof Map) {
+                Map<String, Object> merged = new LinkedHashMap<>((Map<String, Object>) current);
+                merge(merged, (Map<String, Object>) value);
+                target.put(entry.getKey(), merged);
+            } else {
+                target.put(entry.getKey(), value);
+            }
+        }
+    }
+
+    private static class Pending {
+        private final String index;
+        private final String id;
+        private final Map<String, Object> doc = new LinkedHashMap<>();
+        private final CompletableFuture<BulkItemResponse> result = new CompletableFuture<>();
+
+        Pending(String index, String id) {
+            this.index = index;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.benchmark;
+
+import com.example.ESDemoApp;
+import com.example.model.Course;
+import com.example.service.ESDocumentService;
+import com.example.service.SearchShape;
+import com.example.service.SearchTemplates;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ESDocumentService各操作的客户端开销基准测试，请求发送到进程内的ESHttpStub
+ * 运行：mvn -Pjmh test，或直接运行main方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")   //ESHttpStub默认没有TCP_NODELAY，Nagle和延迟确认使每次请求多出约40ms
+public class ESDocumentServiceBenchmark {
+
+    private String index = "xc_course";
+
+    private ESHttpStub stub;
+    private ConfigurableApplicationContext context;
+    private ESDocumentService esDocumentService;
+    private Map<String,Object> jsonMap;
+    private SearchResponse searchResponse;
+    private Map<String,Object> filterParams;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception{
+        stub = new ESHttpStub(0, 4);
+        //properties()只设置默认值，会被application.yml中的es.url覆盖，这里作为命令行参数传入
+        context = new SpringApplicationBuilder(ESDemoApp.class)
+                .run("--es.url=" + stub.address(), "--spring.main.web-application-type=none");
+        esDocumentService = context.getBean(ESDocumentService.class);
+        jsonMap = new HashMap<>();
+        jsonMap.put("name", "kimchy");
+        jsonMap.put("timestamp", "2020-02-10 12:00:00");
+        jsonMap.put("description", "trying out Elasticsearch");
+        jsonMap.put("pic", "trying out Elasticsearch");
+        jsonMap.put("price", 3.14);
+        jsonMap.put("studymodel", "ces");
+        searchResponse = esDocumentService.searchByFilter(index);
+        filterParams = new HashMap<>();
+        filterParams.put("studymodel", "201001");
+        filterParams.put("min_price", 5);
+        filterParams.put("max_price", 6);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        context.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public IndexResponse createDocumet() throws Exception{
+        return esDocumentService.createDocumet(jsonMap, index, "1234567");
+    }
+
+    @Benchmark
+    public GetResponse getDocument() throws Exception{
+        return esDocumentService.getDocument(index, "1234567");
+    }
+
+    @Benchmark
+    public boolean exists() throws Exception{
+        return esDocumentService.exists(index, "1234567");
+    }
+
+    @Benchmark
+    public SearchResponse searchAllDocumentByPage() throws Exception{
+        return esDocumentService.searchAllDocumentByPage(0, 10, index);
+    }
+
+    @Benchmark
+    public SearchResponse searchByConditionTermQuery() throws Exception{
+        return esDocumentService.searchByConditionTermQuery(index);
+    }
+
+    @Benchmark
+    public SearchResponse searchByConditionMatchQeuryWithOrder() throws Exception{
+        return esDocumentService.searchByConditionMatchQeuryWithOrder(index);
+    }
+
+    @Benchmark
+    public SearchResponse searchByConditionMultiQuery() throws Exception{
+        return esDocumentService.searchByConditionMultiQuery(index);
+    }
+
+    @Benchmark
+    public SearchResponse searchBooleanQuery() throws Exception{
+        return esDocumentService.searchBooleanQuery(index);
+    }
+
+    @Benchmark
+    public SearchResponse searchByFilter() throws Exception{
+        return esDocumentService.searchByFilter(index);
+    }
+
+    @Benchmark
+    public SearchResponse searchByFilterShaped() throws Exception{
+        return esDocumentService.searchByFilter(SearchShape.list(), index);
+    }
+
+    @Benchmark
+    public SearchResponse searchByFilterWithHighLight() throws Exception{
+        return esDocumentService.searchByFilterWithHighLight(index);
+    }
+
+    @Benchmark
+    public SearchResponse searchTemplate() throws Exception{
+        return esDocumentService.searchTemplate(SearchTemplates.FILTER_TERM_RANGE, filterParams, index);
+    }
+
+    @Benchmark
+    public SearchResponse searchAsync() throws Exception{
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        esDocumentService.searchAsync(ActionListener.<SearchResponse>wrap(future::complete, future::completeExceptionally), index);
+        return future.get();
+    }
+
+    @Benchmark
+    public void decodeSourceAsMap(Blackhole blackhole){
+        for (SearchHit hit : searchResponse.getHits().getHits()) {
+            //getSourceAsMap会缓存第一次解析的结果，这里直接调用其内部的解析逻辑
+            Map<String, Object> source = XContentHelper.convertToMap(hit.getSourceRef(), false, XContentType.JSON).v2();
+            blackhole.consume(source.get("name"));
+            blackhole.consume(source.get("price"));
+        }
+    }
+
+    @Benchmark
+    public void decodeTyped(Blackhole blackhole) throws Exception{
+        for (SearchHit hit : searchResponse.getHits().getHits()) {
+            Course course = Course.DECODER.decode(hit);
+            blackhole.consume(course.getName());
+            blackhole.consume(course.getPrice());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ESDocumentServiceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 进程内的Elasticsearch 7.5 HTTP桩服务，返回src/test/resources/stub下录制的响应
+ * 不需要真实集群即可测量客户端序列化、解析和连接开销
+ */
+public class ESHttpStub implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final byte[] indexResponse = load("index.json");
+    private final byte[] updateResponse = load("update.json");
+    private final byte[] deleteResponse = load("delete.json");
+    private final byte[] getResponse = load("get.json");
+    private final byte[] searchResponse = load("search.json");
+    private final byte[] notFoundResponse = load("not_found.json");
+
+    /**
+     * @param port     监听端口，0为随机端口
+     * @param threads  处理请求的线程数
+     */
+    public ESHttpStub(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * es.url使用的地址
+     */
+    public String address(){
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if (path.startsWith("/_scripts/")) {
+            respond(exchange, 200, "{\"acknowledged\":true}".getBytes(StandardCharsets.UTF_8));
+        } else if (path.endsWith("/_search/template")) {
+            respond(exchange, 200, searchResponse);
+        } else if (path.endsWith("/_bulk")) {
+            respond(exchange, 200, bulk(body, path));
+        } else if (path.endsWith("/_msearch")) {
+            respond(exchange, 200, multiSearch(body));
+        } else if (path.endsWith("/_search")) {
+            respond(exchange, 200, searchResponse);
+        } else if (path.contains("/_update/")) {
+            respond(exchange, 200, updateResponse);
+        } else if (path.contains("/_doc/")) {
+            switch (method) {
+                case "HEAD":
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    break;
+                case "GET":
+                    respond(exchange, 200, getResponse);
+                    break;
+                case "DELETE":
+                    respond(exchange, 200, deleteResponse);
+                    break;
+                default:
+                    respond(exchange, 201, indexResponse);
+            }
+        } else {
+            respond(exchange, 404, notFoundResponse);
+        }
+    }
+
+    /**
+     * _msearch请求体每两行一个查询，按查询数返回相同个数的结果
+     */
+    private byte[] multiSearch(byte[] body){
+        int lines = 0;
+        for (byte b : body) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        String item = new String(searchResponse, StandardCharsets.UTF_8).trim();
+        item = item.substring(0, item.length() - 1) + ",\"status\":200}";
+        StringBuilder builder = new StringBuilder("{\"took\":2,\"responses\":[");
+        for (int i = 0; i < lines / 2; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(item);
+        }
+        return builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * _bulk请求体每个操作一行元数据，除delete外下一行为文档或更新内容，按操作逐个返回成功的结果
+     */
+    private byte[] bulk(byte[] body, String path){
+        String[] parts = path.split("/");
+        String defaultIndex = parts.length > 2 ? parts[1] : null;   //  /{index}/_bulk
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        StringBuilder builder = new StringBuilder("{\"took\":1,\"errors\":false,\"items\":[");
+        int items = 0;
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].trim().isEmpty()) {
+                continue;
+            }
+            Map<String, Object> action = XContentHelper.convertToMap(XContentType.JSON.xContent(), lines[i], false);
+            String opType = action.keySet().iterator().next();
+            Object metadata = action.get(opType);
+            Map<?, ?> fields = metadata instanceof Map ? (Map<?, ?>) metadata : Collections.emptyMap();
+            Object index = fields.containsKey("_index") ? fields.get("_index") : defaultIndex;
+            Object id = fields.containsKey("_id") ? fields.get("_id") : "stub-" + items;   //自动生成的id
+            if (!"delete".equals(opType)) {
+                i++;
+            }
+            boolean created = "index".equals(opType) || "create".equals(opType);
+            if (items++ > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"").append(opType).append("\":{\"_index\":\"").append(index)
+                    .append("\",\"_type\":\"_doc\",\"_id\":\"").append(id)
+                    .append("\",\"_version\":1,\"result\":\"").append(created ? "created" : opType + "d")
+                    .append("\",\"_shards\":{\"total\":2,\"successful\":1,\"failed\":0},\"_seq_no\":0,\"_primary_term\":1,\"status\":")
+                    .append(created ? 201 : 200).append("}}");
+        }
+        return builder.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] load(String name){
+        try (InputStream in = ESHttpStub.class.getResourceAsStream("/stub/" + name)) {
+            return readFully(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to load stub response " + name, e);
+        }
+    }
+}
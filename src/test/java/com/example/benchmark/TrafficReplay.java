@@ -0,0 +1,243 @@
+package com.example.benchmark;
+
+import com.example.ESDemoApp;
+import com.example.config.TrafficRecorder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 回放TrafficRecorder录制的请求，按操作输出HDR直方图的耗时分位数
+ * 开环(open-loop)发送：每个请求有预定的发送时间，不等待之前的响应，耗时从预定时间算起，服务端变慢时排队的时间也计入，避免coordinated omission
+ * 请求通过ElasticsearchConfig创建的客户端发送，可以用--es.xxx比较不同的客户端配置
+ * 运行：mvn -Preplay test -Dreplay.args="es-traffic.rec.gz --rate=2 --workers=4"，或直接运行main方法
+ * 参数：
+ *   录制文件
+ *   --target=stub        stub为进程内的ESHttpStub(默认)，否则为es.url格式的集群地址
+ *   --rate=1.0           按录制时的节奏回放的倍数，2为两倍速度
+ *   --fixed-rate=0       大于0时忽略录制时的节奏，按每秒固定请求数回放
+ *   --workers=4          按预定时间发送请求的线程数
+ *   --stub-threads=4     ESHttpStub处理请求的线程数
+ *   --timeout-s=60       发送完成后等待响应的最长时间
+ *   --es.xxx=yyy         其余es.开头的参数作为客户端配置，如--es.compression=true
+ */
+public class TrafficReplay {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private final List<TrafficRecorder.Record> records;
+    private final RestClient client;
+    private final RequestOptions options;
+    private final double rate;
+    private final double fixedRate;
+    private final int workers;
+
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    public TrafficReplay(List<TrafficRecorder.Record> records, RestClient client, RequestOptions options,
+                         double rate, double fixedRate, int workers) {
+        this.records = records;
+        this.client = client;
+        this.options = options;
+        this.rate = rate;
+        this.fixedRate = fixedRate;
+        this.workers = workers;
+    }
+
+    /**
+     * 回放全部请求并等待响应
+     * @param timeoutSeconds   发送完成后等待响应的最长时间
+     * @return                 实际用时(纳秒)
+     */
+    public long run(long timeoutSeconds) throws InterruptedException {
+        CountDownLatch completed = new CountDownLatch(records.size());
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long firstOffset = records.isEmpty() ? 0 : records.get(0).getOffsetMicros();
+        List<Thread> threads = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            Thread thread = new Thread(() -> {
+                for (int i = worker; i < records.size(); i += workers) {
+                    TrafficRecorder.Record record = records.get(i);
+                    long intended = start + (fixedRate > 0
+                            ? (long) (i * TimeUnit.SECONDS.toNanos(1) / fixedRate)
+                            : (long) (TimeUnit.MICROSECONDS.toNanos(record.getOffsetMicros() - firstOffset) / rate));
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    send(record, intended, completed);
+                }
+            }, "es-replay-" + w);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!completed.await(timeoutSeconds, TimeUnit.SECONDS)) {
+            System.out.println(completed.getCount() + " requests did not complete");
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void send(TrafficRecorder.Record record, long intended, CountDownLatch completed){
+        String operation = record.getOperation();
+        client.performRequestAsync(request(record), new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                done(operation, intended, false);
+                completed.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                //404等状态码与录制时一致时也会以ResponseException返回，只统计耗时
+                done(operation, intended, !(e instanceof ResponseException));
+                completed.countDown();
+            }
+        });
+    }
+
+    private void done(String operation, long intended, boolean failed){
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended);
+        histograms.computeIfAbsent(operation, k -> new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3))
+                .recordValue(Math.min(Math.max(micros, 1), HIGHEST_TRACKABLE_MICROS));
+        if (failed) {
+            errors.computeIfAbsent(operation, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    private Request request(TrafficRecorder.Record record){
+        String uri = record.getUri();
+        int query = uri.indexOf('?');
+        Request request = new Request(record.getMethod(), query >= 0 ? uri.substring(0, query) : uri);
+        if (query >= 0) {
+            for (String pair : uri.substring(query + 1).split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int eq = pair.indexOf('=');
+                request.addParameter(decode(eq >= 0 ? pair.substring(0, eq) : pair), eq >= 0 ? decode(pair.substring(eq + 1)) : "");
+            }
+        }
+        if (record.getBody().length > 0) {
+            boolean ndjson = uri.contains("/_bulk") || uri.contains("/_msearch");
+            request.setEntity(new NByteArrayEntity(record.getBody(),
+                    ndjson ? ContentType.create("application/x-ndjson") : ContentType.APPLICATION_JSON));
+        }
+        request.setOptions(options);
+        return request;
+    }
+
+    private static String decode(String value){
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 按操作输出请求数、错误数和耗时分位数(毫秒)
+     */
+    public void report(long elapsedNanos){
+        System.out.printf("%d requests in %.1fs, %.1f req/s%n", records.size(), elapsedNanos / 1e9,
+                records.size() / (elapsedNanos / 1e9));
+        System.out.printf("%-40s %8s %6s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "p50", "p90", "p99", "p99.9", "max");
+        Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue().copy();
+            total.add(histogram);
+            AtomicLong failed = errors.get(entry.getKey());
+            print(entry.getKey(), histogram, failed == null ? 0 : failed.get());
+        }
+        print("total", total, errors.values().stream().mapToLong(AtomicLong::get).sum());
+    }
+
+    private static void print(String operation, Histogram histogram, long failed){
+        System.out.printf("%-40s %8d %6d %9.2f %9.2f %9.2f %9.2f %9.2f%n", operation, histogram.getTotalCount(), failed,
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String file = null;
+        String target = "stub";
+        double rate = 1.0;
+        double fixedRate = 0;
+        int workers = 4;
+        int stubThreads = 4;
+        long timeoutSeconds = 60;
+        List<String> properties = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--target=")) {
+                target = value;
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--fixed-rate=")) {
+                fixedRate = Double.parseDouble(value);
+            } else if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(value);
+            } else if (arg.startsWith("--stub-threads=")) {
+                stubThreads = Integer.parseInt(value);
+            } else if (arg.startsWith("--timeout-s=")) {
+                timeoutSeconds = Long.parseLong(value);
+            } else if (arg.startsWith("--es.")) {
+                properties.add(arg);
+            } else {
+                file = arg;
+            }
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("usage: TrafficReplay <recording> [--target=stub|host:port] [--rate=1.0] [--fixed-rate=0] [--workers=4]");
+        }
+        List<TrafficRecorder.Record> records = TrafficRecorder.read(Paths.get(file));
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");   //ESHttpStub默认没有TCP_NODELAY，每次请求多出约40ms
+        }
+        ESHttpStub stub = "stub".equals(target) ? new ESHttpStub(0, stubThreads) : null;
+        properties.add("--es.url=" + (stub != null ? stub.address() : target));
+        properties.add("--es.recorder.enabled=false");
+        properties.add("--spring.main.web-application-type=none");
+        //properties()只设置默认值，会被application.yml覆盖，这里作为命令行参数传入
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(ESDemoApp.class)
+                .run(properties.toArray(new String[0]));
+        try {
+            TrafficReplay replay = new TrafficReplay(records, context.getBean(RestHighLevelClient.class).getLowLevelClient(),
+                    context.getBean(RequestOptions.class), rate, fixedRate, workers);
+            replay.report(replay.run(timeoutSeconds));
+        } finally {
+            context.close();
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * AdaptiveLimiter的并发上限和熔断，请求用sleep模拟耗时，不需要ES集群
+ */
+public class AdaptiveLimiterTest {
+
+    private AdaptiveLimiter limiter;
+
+    @Before
+    public void setUp(){
+        limiter = new AdaptiveLimiter();
+        ReflectionTestUtils.setField(limiter, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(limiter, "limiterEnabled", true);
+        ReflectionTestUtils.setField(limiter, "readInitial", 20);
+        ReflectionTestUtils.setField(limiter, "readMax", 200);
+        ReflectionTestUtils.setField(limiter, "writeInitial", 10);
+        ReflectionTestUtils.setField(limiter, "writeMax", 100);
+        ReflectionTestUtils.setField(limiter, "minLimit", 1);
+        ReflectionTestUtils.setField(limiter, "tolerance", 2.0);
+        ReflectionTestUtils.setField(limiter, "backoffRatio", 0.9);
+        ReflectionTestUtils.setField(limiter, "windowMs", 0L);
+        ReflectionTestUtils.setField(limiter, "windowMinSamples", 10);
+        ReflectionTestUtils.setField(limiter, "longTermWindows", 60);
+        ReflectionTestUtils.setField(limiter, "breakerEnabled", false);
+        ReflectionTestUtils.setField(limiter, "breakerWindow", 10);
+        ReflectionTestUtils.setField(limiter, "breakerMinCalls", 5);
+        ReflectionTestUtils.setField(limiter, "breakerFailureRate", 0.5);
+        ReflectionTestUtils.setField(limiter, "breakerOpenMs", 60000L);
+    }
+
+    @Test
+    public void testJitterDoesNotShrinkLimit() throws Exception{
+        limiter.init();
+        for (int i = 0; i < 100; i++) {
+            sleep("search", i % 2 == 0 ? 2 : 4);   //耗时相差一倍的正常抖动
+        }
+        assertEquals(20, limiter.getLimit(AdaptiveLimiter.Kind.READ));
+    }
+
+    @Test
+    public void testOverloadShrinksOncePerWindow() throws Exception{
+        limiter.init();
+        for (int i = 0; i < 10; i++) {
+            try {
+                limiter.call(AdaptiveLimiter.Kind.READ, "search", () -> {
+                    throw new EsRejectedExecutionException("rejected");
+                });
+                fail();
+            } catch (EsRejectedExecutionException expected) {
+            }
+        }
+        assertEquals(18, limiter.getLimit(AdaptiveLimiter.Kind.READ));   //一个窗口只乘一次0.9
+        assertEquals(10, limiter.getLimit(AdaptiveLimiter.Kind.WRITE));
+    }
+
+    @Test
+    public void testSlowWindowShrinksByGradient() throws Exception{
+        limiter.init();
+        for (int i = 0; i < 10; i++) {
+            sleep("search", 1);
+        }
+        for (int i = 0; i < 10; i++) {
+            sleep("search", 20);
+        }
+        int limit = limiter.getLimit(AdaptiveLimiter.Kind.READ);
+        assertTrue("limit " + limit, limit < 20 && limit >= 10);   //gradient不小于0.5
+    }
+
+    @Test
+    public void testOperationsHaveSeparateLongTermAverages() throws Exception{
+        limiter.init();
+        for (int i = 0; i < 20; i++) {
+            sleep(i % 2 == 0 ? "exists" : "search", i % 2 == 0 ? 1 : 20);
+        }
+        assertEquals(20, limiter.getLimit(AdaptiveLimiter.Kind.READ));
+    }
+
+    @Test
+    public void testSaturatedWindowGrows() throws Exception{
+        ReflectionTestUtils.setField(limiter, "readInitial", 1);
+        limiter.init();
+        for (int i = 0; i < 10; i++) {
+            sleep("search", 1);
+        }
+        assertEquals(2, limiter.getLimit(AdaptiveLimiter.Kind.READ));
+    }
+
+    @Test
+    public void testAsyncRejectedWhenLimitReached() throws Exception{
+        ReflectionTestUtils.setField(limiter, "readInitial", 1);
+        limiter.init();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        assertSame(first, limiter.callAsync(AdaptiveLimiter.Kind.READ, "search", () -> first));
+        try {
+            limiter.callAsync(AdaptiveLimiter.Kind.READ, "search", () -> CompletableFuture.completedFuture("second")).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EsRejectedExecutionException);
+        }
+        first.complete("first");
+        assertEquals(0, limiter.getInFlight(AdaptiveLimiter.Kind.READ));
+    }
+
+    @Test
+    public void testBreakerOpensAndProbeCloses() throws Exception{
+        ReflectionTestUtils.setField(limiter, "limiterEnabled", false);
+        ReflectionTestUtils.setField(limiter, "breakerEnabled", true);
+        limiter.init();
+        for (int i = 0; i < 5; i++) {
+            try {
+                limiter.call(AdaptiveLimiter.Kind.WRITE, "index", () -> {
+                    throw new ConnectException("refused");
+                });
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        assertEquals(2, limiter.getBreakerState());
+        try {
+            limiter.call(AdaptiveLimiter.Kind.READ, "search", () -> "ok");
+            fail();
+        } catch (EsRejectedExecutionException expected) {
+        }
+        ReflectionTestUtils.setField(limiter, "breakerOpenMs", 0L);
+        assertEquals(1, limiter.getBreakerState());
+        assertEquals("ok", limiter.call(AdaptiveLimiter.Kind.READ, "search", () -> "ok"));   //探测请求成功后关闭
+        assertEquals(0, limiter.getBreakerState());
+    }
+
+    private void sleep(String operation, long millis) throws Exception{
+        limiter.call(AdaptiveLimiter.Kind.READ, operation, () -> {
+            TimeUnit.MILLISECONDS.sleep(millis);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.service;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.get.GetResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * DocumentCache的失效标记，不需要ES集群
+ */
+public class DocumentCacheTest {
+
+    private String index = "xc_course";
+
+    private DocumentCache cache;
+
+    @Before
+    public void setUp(){
+        cache = new DocumentCache();
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "maxSize", 2);
+        ReflectionTestUtils.setField(cache, "ttlMs", 60000L);
+        ReflectionTestUtils.setField(cache, "markerTtlMs", 60000L);
+    }
+
+    @Test
+    public void testPutThenGet(){
+        assertNull(cache.get(index, "1"));
+        cache.put(index, "1", response("1", 1), cache.epoch());
+        assertEquals(1, cache.get(index, "1").getVersion());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testReadStartedBeforeWriteIsNotCached(){
+        long epoch = cache.epoch();
+        cache.invalidate(index, "1", -1);   //读取期间发生本地写入
+        cache.put(index, "1", response("1", 1), epoch);
+        assertNull(cache.get(index, "1"));
+    }
+
+    @Test
+    public void testOlderVersionThanLocalWriteIsNotCached(){
+        cache.invalidate(index, "1", 5);
+        cache.put(index, "1", response("1", 4), cache.epoch());   //副本尚未刷新，读到旧版本
+        assertNull(cache.get(index, "1"));
+        cache.put(index, "1", response("1", 5), cache.epoch());
+        assertEquals(5, cache.get(index, "1").getVersion());
+    }
+
+    @Test
+    public void testInvalidateKeepsVersionOfEvictedEntry(){
+        cache.put(index, "1", response("1", 7), cache.epoch());
+        cache.invalidate(index, "1", -1);   //写入前失效，标记沿用缓存中的版本
+        cache.put(index, "1", response("1", 6), cache.epoch());
+        assertNull(cache.get(index, "1"));
+    }
+
+    @Test
+    public void testMarkersDoNotCountTowardsMaxSize(){
+        cache.put(index, "1", response("1", 1), cache.epoch());
+        cache.put(index, "2", response("2", 1), cache.epoch());
+        for (int i = 10; i < 20; i++) {
+            cache.invalidate(index, String.valueOf(i), 1);
+        }
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(index, "1"));
+        assertNotNull(cache.get(index, "2"));
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted(){
+        cache.put(index, "1", response("1", 1), cache.epoch());
+        cache.put(index, "2", response("2", 1), cache.epoch());
+        cache.get(index, "1");
+        cache.put(index, "3", response("3", 1), cache.epoch());
+        assertNotNull(cache.get(index, "1"));
+        assertNull(cache.get(index, "2"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testExpiredMarkerNoLongerBlocks(){
+        ReflectionTestUtils.setField(cache, "markerTtlMs", 0L);
+        cache.invalidate(index, "1", 5);
+        cache.put(index, "1", response("1", 4), cache.epoch());
+        assertEquals(4, cache.get(index, "1").getVersion());
+    }
+
+    private GetResponse response(String id, long version){
+        return new GetResponse(new GetResult(index, "_doc", id, 0, 1, version, true,
+                new BytesArray("{}"), Collections.emptyMap(), Collections.emptyMap()));
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.service;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * TimeSeriesIndices按天分索引时的写入路由和查询裁剪，不需要ES集群
+ */
+public class TimeSeriesIndicesTest {
+
+    private TimeSeriesIndices indices;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp(){
+        indices = new TimeSeriesIndices();
+        ReflectionTestUtils.setField(indices, "aliases", new String[]{"logs"});
+        ReflectionTestUtils.setField(indices, "bucket", "daily");
+        ReflectionTestUtils.setField(indices, "timestampField", "timestamp");
+        ReflectionTestUtils.setField(indices, "timestampFormat", "yyyy-MM-dd HH:mm:ss");
+        ReflectionTestUtils.setField(indices, "maxBuckets", 64);
+        indices.init();
+        //跳过创建索引模板
+        ((Set<String>) ReflectionTestUtils.getField(indices, "bootstrapped")).add("logs");
+    }
+
+    @Test
+    public void testPruneToOverlappingDays(){
+        SearchRequest request = search("logs", QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("message", "error"))
+                .filter(QueryBuilders.rangeQuery("timestamp").gte("2020-01-01 10:00:00").lte("2020-01-03 00:00:00")));
+        indices.prune(request);
+        assertArrayEquals(new String[]{"logs-2020.01.01", "logs-2020.01.02", "logs-2020.01.03"}, request.indices());
+        assertTrue(request.indicesOptions().ignoreUnavailable());   //没有文档的日期不存在索引
+    }
+
+    @Test
+    public void testPruneConvertsTimeZoneToUtc(){
+        SearchRequest request = search("logs", QueryBuilders.rangeQuery("timestamp")
+                .gte("2020-01-02 02:00:00").lte("2020-01-02 07:00:00").timeZone("+08:00"));
+        indices.prune(request);
+        assertArrayEquals(new String[]{"logs-2020.01.01"}, request.indices());
+    }
+
+    @Test
+    public void testPruneUsesEpochMillis(){
+        SearchRequest request = search("logs", QueryBuilders.rangeQuery("timestamp")
+                .gte(1577836800000L).lt(1577923200000L));   //2020-01-01T00:00:00Z到2020-01-02T00:00:00Z
+        indices.prune(request);
+        assertArrayEquals(new String[]{"logs-2020.01.01", "logs-2020.01.02"}, request.indices());
+    }
+
+    @Test
+    public void testOtherFormatIsNotPruned(){
+        SearchRequest request = search("logs", QueryBuilders.rangeQuery("timestamp")
+                .gte("2020-01-01").lte("2020-01-02").format("yyyy-MM-dd"));
+        indices.prune(request);
+        assertArrayEquals(new String[]{"logs"}, request.indices());
+    }
+
+    @Test
+    public void testDateMathIsNotPruned(){
+        SearchRequest request = search("logs", QueryBuilders.rangeQuery("timestamp").gte("now-1d"));
+        indices.prune(request);
+        assertArrayEquals(new String[]{"logs"}, request.indices());
+    }
+
+    @Test
+    public void testTooManyDaysIsNotPruned(){
+        SearchRequest request = search("logs", QueryBuilders.rangeQuery("timestamp")
+                .gte("2019-01-01 00:00:00").lte("2020-01-01 00:00:00"));
+        indices.prune(request);
+        assertArrayEquals(new String[]{"logs"}, request.indices());
+    }
+
+    @Test
+    public void testOtherIndexIsNotPruned(){
+        RangeQueryBuilder range = QueryBuilders.rangeQuery("timestamp").gte("2020-01-01 00:00:00").lte("2020-01-01 01:00:00");
+        SearchRequest request = search("xc_course", range);
+        indices.prune(request);
+        assertArrayEquals(new String[]{"xc_course"}, request.indices());
+    }
+
+    @Test
+    public void testRouteByTimestamp() throws Exception{
+        IndexRequest request = new IndexRequest("logs").source(
+                "{\"tags\":[{\"timestamp\":\"x\"}],\"meta\":{\"timestamp\":1},\"timestamp\":\"2020-01-02 23:59:59\",\"message\":\"ok\"}",
+                XContentType.JSON);
+        indices.route(request);
+        assertEquals("logs-2020.01.02", request.index());   //只取顶层字段，忽略嵌套的同名字段
+    }
+
+    @Test
+    public void testRouteByEpochMillis() throws Exception{
+        IndexRequest request = new IndexRequest("logs").source("{\"timestamp\":1577923200000}", XContentType.JSON);
+        indices.route(request);
+        assertEquals("logs-2020.01.02", request.index());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRouteRejectsUnparsableTimestamp() throws Exception{
+        indices.route(new IndexRequest("logs").source("{\"timestamp\":\"2020/01/02\"}", XContentType.JSON));
+    }
+
+    @Test
+    public void testRouteLeavesOtherIndex() throws Exception{
+        IndexRequest request = new IndexRequest("xc_course").source("{\"timestamp\":\"2020-01-02 00:00:00\"}", XContentType.JSON);
+        indices.route(request);
+        assertEquals("xc_course", request.index());
+    }
+
+    private static SearchRequest search(String index, QueryBuilder query){
+        return new SearchRequest(index).source(new SearchSourceBuilder().query(query));
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * UpdateCoalescer合并更新的规则与ES的partial update一致，不需要ES集群
+ */
+public class UpdateCoalescerTest {
+
+    @Test
+    public void testLaterFieldOverwrites(){
+        Map<String, Object> target = map("name", "kimchy", "price", 3.14);
+        UpdateCoalescer.merge(target, map("price", 5.0));
+        assertEquals(map("name", "kimchy", "price", 5.0), target);
+    }
+
+    @Test
+    public void testObjectsMergeRecursively(){
+        Map<String, Object> target = map("stats", map("views", 1, "likes", map("day", 1)));
+        UpdateCoalescer.merge(target, map("stats", map("likes", map("week", 7))));
+        assertEquals(map("stats", map("views", 1, "likes", map("day", 1, "week", 7))), target);
+    }
+
+    @Test
+    public void testMergeDoesNotModifyEarlierUpdate(){
+        Map<String, Object> first = map("views", 1);
+        Map<String, Object> target = map("stats", first);
+        UpdateCoalescer.merge(target, map("stats", map("likes", 2)));
+        assertEquals(map("views", 1), first);   //调用方传入的Map保持不变
+    }
+
+    @Test
+    public void testArraysAndNullsReplace(){
+        Map<String, Object> target = map("tags", Arrays.asList("a", "b"), "pic", "1.png");
+        UpdateCoalescer.merge(target, map("tags", Collections.singletonList("c"), "pic", null));
+        assertEquals(Collections.singletonList("c"), target.get("tags"));   //数组整体替换，不拼接
+        assertTrue(target.containsKey("pic"));
+        assertNull(target.get("pic"));
+    }
+
+    @Test
+    public void testTypeChangeReplaces(){
+        Map<String, Object> target = map("price", map("value", 1));
+        UpdateCoalescer.merge(target, map("price", 2));
+        assertEquals(2, target.get("price"));
+        UpdateCoalescer.merge(target, map("price", map("value", 3)));
+        assertEquals(map("value", 3), target.get("price"));
+    }
+
+    private static Map<String, Object> map(Object ...keyValues){
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+}
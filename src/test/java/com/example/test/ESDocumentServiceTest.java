@@ -1,29 +1,55 @@
 package com.example.test;
 
+import com.example.model.Course;
+import com.example.service.DeleteByQueryTask;
+import com.example.service.DocumentCache;
 import com.example.service.ESDocumentService;
+import com.example.service.ESExportService;
+import com.example.service.ESFacetService;
+import com.example.service.ESIndexLoader;
+import com.example.service.FacetQuery;
+import com.example.service.SearchShape;
+import com.example.service.SearchTemplates;
+import com.example.service.SlowQueryProfiler;
+import com.example.service.TimeSeriesIndices;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @SpringBootTest
 @RunWith(SpringRunner.class)
@@ -57,6 +83,29 @@ public class ESDocumentServiceTest {
     @Autowired
     private ESDocumentService esDocumentService;
 
+    @Autowired
+    private ESExportService esExportService;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private ESFacetService esFacetService;
+
+    @Autowired
+    private ESIndexLoader esIndexLoader;
+
+    @Autowired
+    private TimeSeriesIndices timeSeriesIndices;
+
+    @Autowired
+    private SlowQueryProfiler slowQueryProfiler;
+
+    /**
+     * 可复用的序列化器
+     */
+    private ObjectWriter courseWriter = new ObjectMapper().writerFor(Course.class);
+
     @Test
     public void testCreateDocumet() throws Exception{
         Map<String,Object> jsonMap = new HashMap<>();
@@ -70,6 +119,21 @@ public class ESDocumentServiceTest {
         System.out.println(response.getResult());
     }
 
+    @Test
+    public void testCreateDocumetFromObject() throws Exception{
+        Course course = new Course();
+        course.setName("kimchy");
+        course.setTimestamp(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+        course.setDescription("trying out Elasticsearch");
+        course.setPrice(3.14);
+        course.setStudymodel("ces");
+        IndexResponse response = esDocumentService.createDocumet(course, courseWriter, index, "1234568");
+        System.out.println(response.getResult());
+        byte[] json = "{\"name\":\"kimchy\",\"price\":3.14}".getBytes(StandardCharsets.UTF_8);
+        response = esDocumentService.createDocumet(json, index, "1234569");
+        System.out.println(response.getResult());
+    }
+
     @Test
     public void testGetDocument() throws Exception{
         GetResponse response = esDocumentService.getDocument(index,"1234567");
@@ -81,15 +145,24 @@ public class ESDocumentServiceTest {
         });
     }
 
+    @Test
+    public void testGetDocumentCached() throws Exception{
+        esDocumentService.getDocument(index,"1234567");
+        esDocumentService.getDocument(index,"1234567");
+        System.out.println("hit:" + documentCache.getHitCount() + " miss:" + documentCache.getMissCount()
+                + " eviction:" + documentCache.getEvictionCount());
+    }
+
     @Test
     public void testExistsDocument() throws Exception{
-        GetResponse response = esDocumentService.exists(index, "1234567");
-        boolean exists = response.isExists();
+        boolean exists = esDocumentService.exists(index, "1234567");
         System.out.println(exists);
-        Optional.ofNullable(response).ifPresent(x -> {
-            Map<String, Object> sourceAsMap = x.getSourceAsMap();
-            System.out.println(sourceAsMap);
-        });
+    }
+
+    @Test
+    public void testExistsAllDocument() throws Exception{
+        Set<String> found = esDocumentService.existsAll(index, Arrays.asList("1234567", "bulk-1", "not-exists"));
+        System.out.println(found);
     }
 
     @Test
@@ -123,6 +196,63 @@ public class ESDocumentServiceTest {
         }
     }
 
+    @Test
+    public void testBulkDocument() throws Exception{
+        Map<String,Object> jsonMap = new HashMap<>();
+        jsonMap.put("name", "bulk");
+        jsonMap.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+        jsonMap.put("price", 5.5);
+        CompletableFuture<BulkItemResponse> create = esDocumentService.createDocumetBulk(jsonMap, index, "bulk-1");
+        Map<String,Object> priceMap = new HashMap<>();
+        priceMap.put("price", 5.8);
+        CompletableFuture<BulkItemResponse> update = esDocumentService.updateDocumentBulk(priceMap, index, "bulk-1");
+        CompletableFuture<BulkItemResponse> delete = esDocumentService.deleteDocumentBulk(index, "bulk-1");
+        esDocumentService.flushBulk();
+        System.out.println(create.get().getResponse().getResult());
+        System.out.println(update.get().getResponse().getResult());
+        System.out.println(delete.get().getResponse().getResult());
+    }
+
+    @Test
+    public void testCoalescedUpdates() throws Exception{
+        Map<String,Object> jsonMap = new HashMap<>();
+        jsonMap.put("name", "coalesce");
+        jsonMap.put("price", 5.5);
+        esDocumentService.createDocumetBulk(jsonMap, index, "coalesce-1");
+        List<CompletableFuture<BulkItemResponse>> updates = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String,Object> priceMap = new HashMap<>();
+            priceMap.put("price", 5.5 + i);
+            priceMap.put("timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+            updates.add(esDocumentService.updateDocumentBulk(priceMap, index, "coalesce-1"));
+        }
+        //开启es.update-coalesce时10次更新合并为一次，各future的结果相同
+        esDocumentService.awaitUpdates().get();
+        for (CompletableFuture<BulkItemResponse> update : updates) {
+            System.out.println(update.get().getVersion() + " " + update.get().getResponse().getResult());
+        }
+        esDocumentService.deleteDocumentBulk(index, "coalesce-1");
+        esDocumentService.flushBulk();
+    }
+
+    @Test
+    public void testTimeSeries() throws Exception{
+        //需要配置es.timeseries.aliases: xc_course_log
+        String alias = "xc_course_log";
+        LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        Map<String,Object> jsonMap = new HashMap<>();
+        jsonMap.put("name", "log");
+        jsonMap.put("timestamp", now.format(formatter));
+        IndexResponse indexResponse = esDocumentService.createDocumet(jsonMap, alias, "log-1");
+        System.out.println(indexResponse.getIndex());
+        System.out.println(Arrays.toString(timeSeriesIndices.indices(alias, now.minusDays(2), null)));
+        SearchRequest request = new SearchRequest(alias).source(new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery().filter(QueryBuilders.rangeQuery("timestamp").gte(now.minusHours(1).format(formatter)))));
+        searchResponsePrint(esDocumentService.search(request, SearchShape.list()));
+        System.out.println(Arrays.toString(request.indices()));
+    }
+
     @Test
     public void testDeleteByQueryDocument() throws Exception{
         TermQueryBuilder termQueryBuilder = new TermQueryBuilder("name", "kimchy");
@@ -131,6 +261,16 @@ public class ESDocumentServiceTest {
         System.out.println(deleted);
     }
 
+    @Test
+    public void testDeleteByQueryDocumentTask() throws Exception{
+        TermQueryBuilder termQueryBuilder = new TermQueryBuilder("name", "kimchy");
+        DeleteByQueryTask task = esDocumentService.deleteByQueryDocumentTask(termQueryBuilder, 0, 500, true, index);
+        task.rethrottle(1000);   //调整限速
+        BulkByScrollResponse bulkByScrollResponse = task.getResult().get();
+        System.out.println(task.getTaskId() + " deleted:" + bulkByScrollResponse.getDeleted()
+                + " conflicts:" + bulkByScrollResponse.getVersionConflicts());
+    }
+
 
     @Test
     public void searchAllDocumentByPage() throws Exception{
@@ -138,6 +278,30 @@ public class ESDocumentServiceTest {
         searchResponsePrint(response);
     }
 
+    @Test
+    public void testStreamAllDocument() throws Exception{
+        long count = esDocumentService.streamAllDocument(100, index)
+                .peek(hit -> System.out.println(hit.getId()))
+                .count();
+        System.out.println(count);
+    }
+
+    @Test
+    public void testExportToNdjson() throws Exception{
+        Path output = Files.createTempFile(index, ".ndjson");
+        long count = esExportService.exportToNdjson(index, output, 2, false, x -> System.out.println("exported " + x));
+        System.out.println(count + " -> " + output);
+    }
+
+    @Test
+    public void testRebuildFromNdjson() throws Exception{
+        Path output = Files.createTempFile(index, ".ndjson");
+        esExportService.exportToNdjson(index, output, 2, false, x -> {});
+        //重建后index成为指向新索引的别名，读写不需要修改
+        String rebuilt = esIndexLoader.loadFromNdjson(index, null, x -> System.out.println("loaded " + x), output);
+        System.out.println(index + " -> " + rebuilt);
+    }
+
     @Test
     public void testQueryByAllConditionQuery() throws Exception{
         SearchResponse response = esDocumentService.searchByConditionTermQuery(index);
@@ -169,12 +333,71 @@ public class ESDocumentServiceTest {
         searchResponsePrint(response);
     }
 
+    @Test
+    public void searchByFilterShaped() throws Exception{
+        SearchResponse response = esDocumentService.searchByFilter(SearchShape.list(), index);
+        searchResponsePrint(response);
+        response = esDocumentService.searchByConditionMatchQeuryWithOrder(SearchShape.ids(), index);
+        for (SearchHit hit : response.getHits().getHits()) {
+            System.out.println(hit.getId());
+        }
+    }
+
+    @Test
+    public void testSlowQueryProfiler() throws Exception{
+        //需要配置es.profiler.enabled: true，sample-rate: 1使每个查询都被profile
+        esDocumentService.searchByFilterWithHighLight(index);
+        esDocumentService.searchByConditionMultiQuery(index);
+        Thread.sleep(1000);   //profile在后台执行
+        for (SlowQueryProfiler.Profile profile : slowQueryProfiler.profiles()) {
+            System.out.println(profile.getFingerprint() + " " + profile.getTook() + "ms " + profile.getShape());
+            System.out.println(profile.getComponents());
+        }
+    }
+
     @Test
     public void searchByFilterWithHighLight() throws Exception{
         SearchResponse response = esDocumentService.searchByFilterWithHighLight(index);
         searchResponsePrint(response);
     }
 
+    @Test
+    public void testSearchTemplate() throws Exception{
+        Map<String,Object> params = new HashMap<>();
+        params.put("studymodel", "201001");
+        params.put("min_price", 5);
+        params.put("max_price", 6);
+        SearchResponse response = esDocumentService.searchTemplate(SearchTemplates.FILTER_TERM_RANGE, params, index);
+        searchResponsePrint(response);
+    }
+
+    @Test
+    public void testFacets() throws Exception{
+        FacetQuery query = FacetQuery.builder(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.rangeQuery("price").gte(0)))
+                .terms("studymodel", "studymodel", 10)
+                .range("price", "price", 5, 6)
+                .histogram("price_histogram", "price", 1)
+                .build();
+        System.out.println(esFacetService.facets(query, index));
+        System.out.println(esFacetService.facets(query, index));   //命中客户端缓存
+    }
+
+    @Test
+    public void testMultiSearch() throws Exception{
+        List<CompletableFuture<SearchResponse>> futures = esDocumentService.multiSearch(Arrays.asList(
+                esDocumentService.searchByConditionTermQueryRequest(index),
+                esDocumentService.searchBooleanQueryRequest(index),
+                esDocumentService.searchByFilterRequest(index)));
+        for (CompletableFuture<SearchResponse> future : futures) {
+            try {
+                searchResponsePrint(future.get());
+            } catch (Exception e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
     @Test
     public void testSearchAsync() throws Exception{
         esDocumentService.searchAsync(listener,index);
@@ -182,6 +405,17 @@ public class ESDocumentServiceTest {
         Thread.sleep(2000);
     }
 
+    @Test
+    public void testAsyncOperations() throws Exception{
+        CompletableFuture<GetResponse> get = esDocumentService.getDocumentAsync(index, "1234567");
+        CompletableFuture<Boolean> exists = esDocumentService.existsAsync(index, "1234567");
+        CompletableFuture<SearchResponse> search = esDocumentService.searchByFilterAsync(index);
+        CompletableFuture.allOf(get, exists, search).exceptionally(e -> null).join();
+        System.out.println(get.get().getSourceAsString());
+        System.out.println(exists.get());
+        searchResponsePrint(search.get());
+    }
+
 
     /**
      * 查询结果打印
@@ -192,18 +426,18 @@ public class ESDocumentServiceTest {
         //获取所有命中记录
         SearchHits hits = response.getHits();
         float maxScore = hits.getMaxScore();   //获取最大评分
-        long value = hits.getTotalHits().value;  //获取总记录数
+        long value = hits.getTotalHits() == null ? -1 : hits.getTotalHits().value;  //获取总记录数，不统计总数时为null
         SearchHit[] searchHits = hits.getHits();   //获取所有记录
         for (SearchHit hit : searchHits){
             String id = hit.getId();         //获取当前记录id
             String index = hit.getIndex();   //获取索引库
             float score = hit.getScore();    //获取扽分
-            Map<String, Object> sourceAsMap = hit.getSourceAsMap();   //获取结果
-            System.out.println(sourceAsMap.get("name"));
-            System.out.println(sourceAsMap.get("price"));
-            System.out.println(sourceAsMap.get("studymodel"));
-            System.out.println(sourceAsMap.get("description"));
-            System.out.println(sourceAsMap.get("timestamp"));
+            Course course = Course.DECODER.decode(hit);   //直接从_source解析，不生成Map
+            System.out.println(course.getName());
+            System.out.println(course.getPrice());
+            System.out.println(course.getStudymodel());
+            System.out.println(course.getDescription());
+            System.out.println(course.getTimestamp());
             //打印高亮字段
             Optional.ofNullable(hit.getHighlightFields()).ifPresent(x->{
                 System.out.println(x.get("description"));